@@ -0,0 +1,60 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+/**
+ * Compares the blocking schedulers of {@link BlockingExecutionConfig} on a burst of tasks
+ * that each block for a while, as a synchronous Mongo lookup or a BCrypt check would. Not a
+ * unit test; run it with {@code mvn -Pbenchmark test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.greglturnquist.hackingspringboot.reactive.BlockingSchedulerBenchmark}.
+ * Virtual threads are only measured on Java 21 and later.
+ */
+public class BlockingSchedulerBenchmark {
+
+	private static final int TASKS = 10_000;
+
+	private static final Duration BLOCKING_TIME = Duration.ofMillis(20);
+
+	public static void main(String... args) {
+		System.out.printf("%-16s %12s %14s%n", "scheduler", "ms", "tasks/s");
+		run("bounded-elastic");
+		ExecutorService probe = BlockingExecutionConfig.virtualThreadPerTaskExecutor();
+		if (probe != null) {
+			probe.shutdown();
+			run("virtual");
+		} else {
+			System.out.printf("%-16s %12s%n", "virtual", "n/a (Java " + System.getProperty("java.version") + ")");
+		}
+	}
+
+	private static void run(String mode) {
+		Scheduler scheduler = BlockingExecutionConfig.scheduler(mode);
+		try {
+			burst(scheduler, TASKS / 10);
+
+			long start = System.nanoTime();
+			burst(scheduler, TASKS);
+			long millis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+
+			System.out.printf("%-16s %12d %14.0f%n", mode, millis, TASKS * 1_000.0 / Math.max(millis, 1));
+		} finally {
+			scheduler.dispose();
+		}
+	}
+
+	private static void burst(Scheduler scheduler, int tasks) {
+		Flux.range(0, tasks)
+				.flatMap(i -> Mono.fromCallable(BlockingSchedulerBenchmark::block).subscribeOn(scheduler), tasks)
+				.blockLast();
+	}
+
+	private static int block() throws InterruptedException {
+		Thread.sleep(BLOCKING_TIME.toMillis());
+		return 1;
+	}
+}
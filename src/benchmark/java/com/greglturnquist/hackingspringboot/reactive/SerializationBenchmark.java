@@ -0,0 +1,74 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.hateoas.CollectionModel;
+import org.springframework.hateoas.EntityModel;
+import org.springframework.hateoas.IanaLinkRelations;
+import org.springframework.hateoas.Link;
+import org.springframework.hateoas.mediatype.MessageResolver;
+import org.springframework.hateoas.mediatype.hal.CurieProvider;
+import org.springframework.hateoas.mediatype.hal.Jackson2HalModule;
+import org.springframework.hateoas.server.core.DefaultLinkRelationProvider;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * Compares serialization time and payload size of the {@literal /api/items} collection
+ * model in HAL JSON against the binary formats. Not a unit test; run it from the IDE or with
+ * {@code mvn -Pbenchmark test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.greglturnquist.hackingspringboot.reactive.SerializationBenchmark}.
+ */
+public class SerializationBenchmark {
+
+	private static final int ITEMS = 500;
+
+	private static final int WARMUP = 2_000;
+
+	private static final int ITERATIONS = 5_000;
+
+	public static void main(String... args) throws Exception {
+		CollectionModel<EntityModel<Item>> model = catalog();
+
+		ObjectMapper hal = Jackson2ObjectMapperBuilder.json().build();
+		hal.registerModule(new Jackson2HalModule());
+		hal.setHandlerInstantiator(new Jackson2HalModule.HalHandlerInstantiator(new DefaultLinkRelationProvider(),
+				CurieProvider.NONE, MessageResolver.DEFAULTS_ONLY));
+
+		System.out.printf("%-10s %12s %14s%n", "format", "bytes", "us/op");
+		run("hal+json", hal, model);
+		run("json", Jackson2ObjectMapperBuilder.json().build(), model);
+		run("cbor", Jackson2ObjectMapperBuilder.cbor().build(), model);
+		run("smile", Jackson2ObjectMapperBuilder.smile().build(), model);
+	}
+
+	private static void run(String name, ObjectMapper mapper, Object model) throws Exception {
+		int size = 0;
+		for (int i = 0; i < WARMUP; i++) {
+			size = mapper.writeValueAsBytes(model).length;
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < ITERATIONS; i++) {
+			size = mapper.writeValueAsBytes(model).length;
+		}
+		double micros = (System.nanoTime() - start) / 1_000.0 / ITERATIONS;
+
+		System.out.printf("%-10s %12d %14.1f%n", name, size, micros);
+	}
+
+	private static CollectionModel<EntityModel<Item>> catalog() {
+		List<EntityModel<Item>> items = new ArrayList<>();
+		for (int i = 0; i < ITEMS; i++) {
+			String id = String.format("5f4d2a1e9c1b2a%010d", i);
+			Item item = new Item(id, "Item " + i, "Description of item number " + i, 999 + 100L * i);
+			items.add(EntityModel.of(item,
+					Link.of("/api/items/" + id).withSelfRel(),
+					Link.of("/api/items").withRel(IanaLinkRelations.ITEM),
+					Link.of("/api/items/delete/" + id).withRel("delete")));
+		}
+		return CollectionModel.of(items, Link.of("/api/items").withSelfRel(), Link.of("/api/items/add").withRel("add"));
+	}
+}
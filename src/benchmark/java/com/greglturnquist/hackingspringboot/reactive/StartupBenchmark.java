@@ -0,0 +1,122 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.ServerSocket;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Starts the application in a fresh JVM and reports the time to the first HTTP response,
+ * the time until the readiness probe is up, and the resident memory at that point. Not a
+ * unit test; run it with {@code mvn -Pbenchmark test-compile exec:java -Dexec.classpathScope=test
+ * -Dexec.mainClass=com.greglturnquist.hackingspringboot.reactive.StartupBenchmark}, passing
+ * the profiles to compare as arguments (default: {@code default startup}). The archive
+ * built by {@code mvn -Pcds package} is used when it exists. A run that exits or isn't
+ * ready within {@code -Dstartup.timeout} seconds (default 300) fails, pointing at its log.
+ */
+public class StartupBenchmark {
+
+	private static final String CDS_ARCHIVE = "target/app-cds.jsa";
+
+	private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(Long.getLong("startup.timeout", 300));
+
+	public static void main(String... args) throws Exception {
+		String[] profiles = args.length > 0 ? args : new String[] { "default", "startup" };
+
+		System.out.printf("%-12s %16s %12s %10s%n", "profile", "first response", "ready", "RSS");
+		for (String profile : profiles) {
+			run(profile);
+		}
+	}
+
+	private static void run(String profile) throws Exception {
+		int port = freePort();
+		List<String> command = new ArrayList<>();
+		command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+		if (Files.exists(Paths.get(CDS_ARCHIVE))) {
+			command.add("-XX:SharedArchiveFile=" + CDS_ARCHIVE);
+		}
+		command.add("-Dspring.profiles.active=" + profile);
+		command.add("-Dserver.port=" + port);
+		command.add("-Dspring.rsocket.server.port=0");
+		command.add("-cp");
+		command.add(System.getProperty("java.class.path"));
+		command.add(HackingSpringBootApplication.class.getName());
+
+		File log = new File("target/startup-" + profile + ".log");
+		long start = System.nanoTime();
+		Process app = new ProcessBuilder(command).redirectErrorStream(true)
+				.redirectOutput(log)
+				.start();
+		try {
+			String base = "http://localhost:" + port;
+			long deadline = start + TIMEOUT_NANOS;
+			await(app, log, deadline, "answer", () -> status(base + "/actuator/health/liveness") >= 0);
+			long firstResponse = System.nanoTime() - start;
+			await(app, log, deadline, "become ready", () -> status(base + "/actuator/health/readiness") == 200);
+			long ready = System.nanoTime() - start;
+
+			System.out.printf("%-12s %13d ms %9d ms %7d MB%n", profile, TimeUnit.NANOSECONDS.toMillis(firstResponse),
+					TimeUnit.NANOSECONDS.toMillis(ready), residentKilobytes(app) / 1024);
+		} finally {
+			app.destroy();
+			if (!app.waitFor(30, TimeUnit.SECONDS)) {
+				app.destroyForcibly();
+			}
+		}
+	}
+
+	/**
+	 * Poll until the condition holds, failing if the application exits or the deadline passes first.
+	 */
+	private static void await(Process app, File log, long deadline, String what, BooleanSupplier condition)
+			throws InterruptedException {
+		while (!condition.getAsBoolean()) {
+			if (!app.isAlive()) {
+				throw new IllegalStateException("The application exited with " + app.exitValue() + " before it could "
+						+ what + ", see " + log);
+			}
+			if (System.nanoTime() - deadline > 0) {
+				throw new IllegalStateException("The application didn't " + what + " in time, see " + log);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+	private static int status(String url) {
+		try {
+			HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+			connection.setConnectTimeout(100);
+			connection.setReadTimeout(1_000);
+			return connection.getResponseCode();
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * VmRSS of the process on Linux, or -1 where that isn't available.
+	 */
+	private static long residentKilobytes(Process process) throws Exception {
+		Object pid = Process.class.getMethod("pid").invoke(process);
+		for (String line : Files.readAllLines(Paths.get("/proc", pid.toString(), "status"))) {
+			if (line.startsWith("VmRSS:")) {
+				return Long.parseLong(line.replaceAll("[^0-9]", ""));
+			}
+		}
+		return -1;
+	}
+
+	private static int freePort() throws IOException {
+		try (ServerSocket socket = new ServerSocket(0)) {
+			return socket.getLocalPort();
+		}
+	}
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * Caps the number of requests in flight across the whole node. Runs ahead of the security
+ * filter chain, so excess load is shed with {@literal 503 Service Unavailable} before any
+ * password hashing or database work is spent on it. Long-lived streams and health probes
+ * are not counted.
+ */
+class AdmissionControlWebFilter implements WebFilter, Ordered {
+
+	private static final List<String> UNCOUNTED = Arrays.asList("/api/items/events", "/actuator/health/**");
+
+	private final PathMatcher pathMatcher = new AntPathMatcher();
+
+	private final AtomicInteger inFlight = new AtomicInteger();
+
+	private final int maxConcurrentRequests;
+
+	private final Counter shed;
+
+	AdmissionControlWebFilter(int maxConcurrentRequests, MeterRegistry meterRegistry) {
+		this.maxConcurrentRequests = maxConcurrentRequests;
+		this.shed = Counter.builder("http.admission.shed")
+				.description("Requests shed because too many were in flight")
+				.register(meterRegistry);
+		Gauge.builder("http.admission.in-flight", this.inFlight, AtomicInteger::get)
+				.description("Requests currently in flight")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public int getOrder() {
+		// Ahead of Spring Security's WebFilterChainProxy at -100.
+		return -200;
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		String path = exchange.getRequest().getPath().pathWithinApplication().value();
+		if (UNCOUNTED.stream().anyMatch(pattern -> this.pathMatcher.match(pattern, path))) {
+			return chain.filter(exchange);
+		}
+
+		if (this.inFlight.incrementAndGet() > this.maxConcurrentRequests) {
+			this.inFlight.decrementAndGet();
+			this.shed.increment();
+			exchange.getResponse().setStatusCode(HttpStatus.SERVICE_UNAVAILABLE);
+			exchange.getResponse().getHeaders().set(HttpHeaders.RETRY_AFTER, "1");
+			return exchange.getResponse().setComplete();
+		}
+
+		return chain.filter(exchange)
+				.doFinally(signal -> this.inFlight.decrementAndGet());
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static com.greglturnquist.hackingspringboot.reactive.SecurityConfig.INVENTORY;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Merchandising reports, read from the {@link CartAnalytics} rollups so they never scan
+ * carts or orders.
+ */
+@RestController
+public class ApiAnalyticsController {
+
+	private static final int MAX_LIMIT = 1000;
+
+	private final CartAnalytics analytics;
+
+	public ApiAnalyticsController(CartAnalytics analytics) {
+		this.analytics = analytics;
+	}
+
+	@PreAuthorize("hasRole('" + INVENTORY + "')")
+	@GetMapping("/api/analytics/items")
+	Flux<ItemDemand> mostCarted(@RequestParam(defaultValue = "20") int limit) {
+		return this.analytics.mostCarted(Math.max(1, Math.min(limit, MAX_LIMIT)));
+	}
+
+	@PreAuthorize("hasRole('" + INVENTORY + "')")
+	@GetMapping("/api/analytics/items/{id}")
+	Mono<ResponseEntity<ItemDemand>> demand(@PathVariable String id) {
+		return this.analytics.demand(id)
+				.map(ResponseEntity::ok)
+				.defaultIfEmpty(ResponseEntity.notFound().build());
+	}
+
+	@PreAuthorize("hasRole('" + INVENTORY + "')")
+	@GetMapping("/api/analytics/cart-values")
+	Flux<CartValueBucket> cartValues() {
+		return this.analytics.cartValues();
+	}
+
+	/**
+	 * Rebuild the rollups right away instead of waiting for the nightly run, e.g. to seed
+	 * them. This scans every cart and order, so it is best left to quiet hours. Answers
+	 * {@code 409 Conflict} while a rebuild is already running somewhere.
+	 */
+	@PreAuthorize("hasRole('" + INVENTORY + "')")
+	@PostMapping("/api/analytics/rebuild")
+	Mono<ResponseEntity<?>> rebuild() {
+		return this.analytics.rebuild()
+				.map(rebuilt -> rebuilt //
+						? ResponseEntity.noContent().build() //
+						: ResponseEntity.status(HttpStatus.CONFLICT).build());
+	}
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static com.greglturnquist.hackingspringboot.reactive.HomeController.cartName;
+
+import java.net.URI;
+import java.util.List;
+
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.core.Authentication;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RestController;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * JSON access to the current user's cart for non-browser clients.
+ */
+@RestController
+public class ApiCartController {
+
+	private final InventoryService inventoryService;
+
+	public ApiCartController(InventoryService inventoryService) {
+		this.inventoryService = inventoryService;
+	}
+
+	@GetMapping("/api/cart")
+	Mono<Cart> cart(Authentication auth) {
+		return this.inventoryService.getCart(cartName(auth))
+				.defaultIfEmpty(new Cart(cartName(auth)));
+	}
+
+	@GetMapping("/api/cart/summary")
+	Mono<CartSummary> summary(Authentication auth) {
+		return this.inventoryService.getCartSummary(cartName(auth))
+				.defaultIfEmpty(CartSummary.empty(cartName(auth)));
+	}
+
+	/**
+	 * Apply a list of quantity changes in one round trip, e.g.
+	 * {@code [{"itemId": "...", "delta": 2}, {"itemId": "...", "delta": -1}]}.
+	 */
+	@PostMapping("/api/cart/operations")
+	Mono<Cart> applyOperations(@RequestBody List<CartOperation> operations, Authentication auth) {
+		return this.inventoryService.applyCartOperations(cartName(auth), operations);
+	}
+
+	@PostMapping("/api/cart/checkout")
+	Mono<ResponseEntity<Order>> checkout(Authentication auth) {
+		return this.inventoryService.checkout(cartName(auth))
+				.map(order -> ResponseEntity.created(URI.create("/api/orders/" + order.getId())).body(order))
+				.defaultIfEmpty(ResponseEntity.unprocessableEntity().build());
+	}
+
+	@GetMapping("/api/orders/{id}")
+	Mono<ResponseEntity<Order>> order(@PathVariable String id, Authentication auth) {
+		return this.inventoryService.getOrder(cartName(auth), id)
+				.map(ResponseEntity::ok)
+				.defaultIfEmpty(ResponseEntity.notFound().build());
+	}
+}
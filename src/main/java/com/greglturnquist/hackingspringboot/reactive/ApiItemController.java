@@ -17,24 +17,26 @@
 package com.greglturnquist.hackingspringboot.reactive;
 
 import static com.greglturnquist.hackingspringboot.reactive.SecurityConfig.INVENTORY;
-import static org.springframework.hateoas.mediatype.alps.Alps.alps;
-import static org.springframework.hateoas.mediatype.alps.Alps.descriptor;
 import static org.springframework.hateoas.server.reactive.WebFluxLinkBuilder.linkTo;
 import static org.springframework.hateoas.server.reactive.WebFluxLinkBuilder.methodOn;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.stream.Collectors;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
 
 import org.springframework.hateoas.CollectionModel;
 import org.springframework.hateoas.EntityModel;
 import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.hateoas.Link;
 import org.springframework.hateoas.Links;
+import org.springframework.hateoas.MediaTypes;
 import org.springframework.hateoas.RepresentationModel;
-import org.springframework.hateoas.mediatype.alps.Alps;
-import org.springframework.hateoas.mediatype.alps.Type;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.access.prepost.PreAuthorize;
 import org.springframework.security.core.Authentication;
 import org.springframework.security.core.authority.SimpleGrantedAuthority;
@@ -45,7 +47,9 @@ import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.PutMapping;
 import org.springframework.web.bind.annotation.RequestBody;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ServerWebExchange;
 
+import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
 
 @RestController
@@ -54,10 +58,27 @@ public class ApiItemController {
 	private static final SimpleGrantedAuthority ROLE_INVENTORY = 
 			new SimpleGrantedAuthority("ROLE_" + INVENTORY);
 	
-	private final ItemRepository repository;
+	private static final Duration HEARTBEAT = Duration.ofSeconds(15);
 
-	public ApiItemController(ItemRepository repository) {
-		this.repository = repository;
+	private static final CacheControl REVALIDATE = CacheControl.noCache().cachePrivate();
+
+	private final InventoryService inventoryService;
+
+	private final ApiProfiles profiles;
+
+	private final InventoryEvents events;
+
+	private final Tracing tracing;
+
+	private final CatalogVersion catalogVersion;
+
+	public ApiItemController(InventoryService inventoryService, ApiProfiles profiles, InventoryEvents events,
+			Tracing tracing, CatalogVersion catalogVersion) {
+		this.inventoryService = inventoryService;
+		this.profiles = profiles;
+		this.events = events;
+		this.tracing = tracing;
+		this.catalogVersion = catalogVersion;
 	}
 
 	@GetMapping("/api")
@@ -67,7 +88,7 @@ public class ApiItemController {
 		Mono<Link> selfLink = linkTo(controller.root()).withSelfRel()
 				.toMono();
 
-		Mono<Link> itemsAggregateLink = linkTo(controller.findAll(null))
+		Mono<Link> itemsAggregateLink = linkTo(controller.findAll(null, null))
 				.withRel(IanaLinkRelations.ITEM)
 				.toMono();
 
@@ -77,14 +98,15 @@ public class ApiItemController {
 	}
 
 	@GetMapping("/api/items")
-	Mono<CollectionModel<EntityModel<Item>>> findAll(Authentication auth) {
+	Mono<ResponseEntity<CollectionModel<EntityModel<Item>>>> findAll(Authentication auth,
+			ServerWebExchange exchange) {
 		ApiItemController controller = methodOn(ApiItemController.class);
 
-		Mono<Link> selfLink = linkTo(controller.findAll(auth)).withSelfRel().toMono();
+		Mono<Link> selfLink = linkTo(controller.findAll(auth, null)).withSelfRel().toMono();
 
 		Mono<Links> allLinks;
 		
-		if (auth.getAuthorities().contains(ROLE_INVENTORY)) {
+		if (hasInventoryRole(auth)) {
 			Mono<Link> addNewLink = linkTo(controller.addNewItem(null, auth)).withRel("add").toMono();
 			
 			allLinks = Mono.zip(selfLink, addNewLink) //
@@ -93,26 +115,82 @@ public class ApiItemController {
 			allLinks = selfLink.map(link -> Links.of(link));
 		}
 
-		return allLinks
-				.flatMap(links -> this.repository.findAll()
-						.flatMap(item -> findOne(item.getId(), auth))
-						.collectList()
-						.map(entityModels -> CollectionModel.of(entityModels, links)));
+		// The version is checked before the catalog is read, so a revalidation costs one small read.
+		return this.tracing.mono("ApiItemController.findAll", catalogVersion()
+				.flatMap(version -> {
+					String etag = version.map(v -> v.catalogTag(hasInventoryRole(auth))).orElse(null);
+					Instant lastModified = version.map(CatalogVersion.Version::getChangedAt).orElse(null);
+
+					if (etag != null && exchange.checkNotModified(etag, lastModified)) {
+						return Mono.just(notModified(etag));
+					}
+
+					return allLinks
+							.flatMap(links -> this.inventoryService.getInventory()
+									.concatMap(item -> toModel(item, auth))
+									.collectList()
+									.map(entityModels -> CollectionModel.of(entityModels, links)))
+							.map(model -> validators(ResponseEntity.ok(), etag, lastModified).body(model));
+				}));
 	}
 
 	@GetMapping("/api/items/{id}")
-	Mono<EntityModel<Item>> findOne(@PathVariable String id, Authentication auth) {
+	Mono<ResponseEntity<EntityModel<Item>>> findOne(@PathVariable String id, Authentication auth,
+			ServerWebExchange exchange) {
+		return this.tracing.mono("ApiItemController.findOne", catalogVersion()
+				.flatMap(version -> {
+					String etag = version.map(v -> v.itemTag(id, hasInventoryRole(auth))).orElse(null);
+
+					if (etag != null && exchange.checkNotModified(etag)) {
+						return Mono.just(notModified(etag));
+					}
+
+					return this.inventoryService.getItem(id)
+							.flatMap(item -> toModel(item, auth))
+							.map(model -> validators(ResponseEntity.ok(), etag, null).body(model));
+				}));
+	}
+
+	/**
+	 * The catalog version, or none while Mongo is unavailable: the catalog may then be served
+	 * from the last copy read, which no version describes, so it goes out without validators.
+	 */
+	private Mono<Optional<CatalogVersion.Version>> catalogVersion() {
+		return this.catalogVersion.current()
+				.map(Optional::of)
+				.onErrorResume(MongoUnavailableException.class, e -> Mono.just(Optional.empty()));
+	}
+
+	/**
+	 * Stream catalog changes as server-sent events, with a periodic comment to keep idle
+	 * connections open through proxies.
+	 */
+	@GetMapping(value = "/api/items/events", produces = MediaType.TEXT_EVENT_STREAM_VALUE)
+	Flux<ServerSentEvent<ItemEvent>> events() {
+		Flux<ServerSentEvent<ItemEvent>> changes = this.events.events()
+				.map(event -> ServerSentEvent.builder(event)
+						.event(event.getType().name().toLowerCase())
+						.build());
+
+		Flux<ServerSentEvent<ItemEvent>> heartbeats = Flux.interval(HEARTBEAT)
+				.map(tick -> ServerSentEvent.<ItemEvent> builder().comment("heartbeat").build());
+
+		return Flux.merge(changes, heartbeats);
+	}
+
+	private Mono<EntityModel<Item>> toModel(Item item, Authentication auth) {
 		ApiItemController controller = methodOn(ApiItemController.class);
+		String id = item.getId();
 
-		Mono<Link> selfLink = linkTo(controller.findOne(id, auth)).withSelfRel()
+		Mono<Link> selfLink = linkTo(controller.findOne(id, auth, null)).withSelfRel()
 				.toMono();
 
-		Mono<Link> aggregateLink = linkTo(controller.findAll(auth))
+		Mono<Link> aggregateLink = linkTo(controller.findAll(auth, null))
 				.withRel(IanaLinkRelations.ITEM).toMono();
 
 		Mono<Links> allLinks;
 		
-		if (auth.getAuthorities().contains(ROLE_INVENTORY)) {
+		if (hasInventoryRole(auth)) {
 			Mono<Link> deleteLink = linkTo(controller.deleteItem(id)).withRel("delete")
 					.toMono();
 			allLinks = Mono.zip(selfLink, aggregateLink, deleteLink)
@@ -123,17 +201,37 @@ public class ApiItemController {
 					.map(links -> Links.of(links.getT1(), links.getT2()));
 		}
 
-		return this.repository.findById(id)
-				.zipWith(allLinks)
-				.map(o -> EntityModel.of(o.getT1(), o.getT2()));
+		return allLinks.map(links -> EntityModel.of(item, links));
+	}
+
+	private static boolean hasInventoryRole(Authentication auth) {
+		return auth.getAuthorities().contains(ROLE_INVENTORY);
+	}
+
+	private static ResponseEntity.BodyBuilder validators(ResponseEntity.BodyBuilder response, String etag,
+			Instant lastModified) {
+		response.cacheControl(REVALIDATE);
+		if (etag != null) {
+			response.eTag(etag);
+		}
+		if (lastModified != null) {
+			response.lastModified(lastModified);
+		}
+		return response;
+	}
+
+	private static <T> ResponseEntity<T> notModified(String etag) {
+		return ResponseEntity.status(HttpStatus.NOT_MODIFIED) //
+				.cacheControl(REVALIDATE) //
+				.eTag(etag) //
+				.build();
 	}
 
 	@PreAuthorize("hasRole('" + INVENTORY + "')")
 	@PostMapping("/api/items/add")
 	Mono<ResponseEntity<?>> addNewItem(@RequestBody Item item, Authentication auth) {
-		return this.repository.save(item)
-				.map(Item::getId)
-				.flatMap(id -> findOne(id, auth))
+		return this.inventoryService.saveItem(item)
+				.flatMap(saved -> toModel(saved, auth))
 				.map(newModel -> ResponseEntity.created(newModel
 						.getRequiredLink(IanaLinkRelations.SELF)
 						.toUri()).build());
@@ -142,7 +240,19 @@ public class ApiItemController {
 	@PreAuthorize("hasRole('" + INVENTORY + "')")
 	@DeleteMapping("/api/items/delete/{id}")
 	Mono<ResponseEntity<?>> deleteItem(@PathVariable String id) {
-		return this.repository.deleteById(id)
+		return this.inventoryService.deleteItem(id)
+				.thenReturn(ResponseEntity.noContent().build());
+	}
+
+	@GetMapping("/api/items/{id}/stock")
+	Mono<Long> findStock(@PathVariable String id) {
+		return this.inventoryService.getStock(id);
+	}
+
+	@PreAuthorize("hasRole('" + INVENTORY + "')")
+	@PutMapping("/api/items/{id}/stock")
+	Mono<ResponseEntity<?>> updateStock(@PathVariable String id, @RequestBody Long available) {
+		return this.inventoryService.setStock(id, available)
 				.thenReturn(ResponseEntity.noContent().build());
 	}
 
@@ -152,25 +262,28 @@ public class ApiItemController {
 		return item
 				.map(EntityModel::getContent)
 				.map(content -> new Item(id, content.getName(),
-						content.getDescription(), content.getPrice()))
-				.flatMap(this.repository::save)
-				.then(findOne(id, auth))
+						content.getDescription(), content.getPriceMinor()))
+				.flatMap(this.inventoryService::saveItem)
+				.flatMap(saved -> toModel(saved, auth))
 				.map(model -> ResponseEntity.noContent()
 						.location(model.getRequiredLink(IanaLinkRelations.SELF).toUri()).build());
 	}
 
-	@GetMapping(value = "/api/items/profile"/*, produces = MediaTypes.ALPS_JSON_VALUE*/)
-	public Alps profile() {
-		return alps()
-				.descriptor(Collections.singletonList(descriptor()
-						.id(Item.class.getSimpleName() + "-representation")
-						.descriptor(Arrays.stream(Item.class.getDeclaredFields())
-								.map(field -> descriptor()
-										.name(field.getName())
-										.type(Type.SEMANTIC)
-										.build())
-								.collect(Collectors.toList()))
-						.build()))
-				.build();
+	@GetMapping(value = "/api/items/profile", produces = { MediaTypes.ALPS_JSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<byte[]> profile(ServerWebExchange exchange) {
+		return profile("item", exchange);
+	}
+
+	@GetMapping(value = "/api/profile/{resource}", produces = { MediaTypes.ALPS_JSON_VALUE, MediaType.APPLICATION_JSON_VALUE })
+	public ResponseEntity<byte[]> profile(@PathVariable String resource, ServerWebExchange exchange) {
+		ApiProfiles.Profile profile = this.profiles.get(resource);
+
+		if (profile == null) {
+			return ResponseEntity.notFound().build();
+		}
+
+		HttpHeaders headers = exchange.getRequest().getHeaders();
+		ResponseEntity<byte[]> notModified = profile.notModified(headers);
+		return notModified != null ? notModified : profile.response(headers);
 	}
 }
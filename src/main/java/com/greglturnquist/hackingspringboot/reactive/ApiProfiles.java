@@ -0,0 +1,249 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.springframework.hateoas.mediatype.alps.Alps.alps;
+import static org.springframework.hateoas.mediatype.alps.Alps.descriptor;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPOutputStream;
+
+import org.springframework.hateoas.MediaTypes;
+import org.springframework.hateoas.mediatype.alps.Alps;
+import org.springframework.hateoas.mediatype.alps.Type;
+import org.springframework.http.CacheControl;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
+import org.springframework.util.DigestUtils;
+import org.springframework.util.StringUtils;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+/**
+ * ALPS profiles of the API's resource types. They only depend on the classes, so they are
+ * built and serialized once at startup, and every request is answered with one of the
+ * prebuilt, immutable {@link ResponseEntity} instances.
+ */
+@Component
+class ApiProfiles {
+
+	private static final String GZIP = "gzip";
+
+	private static final CacheControl PROFILE_CACHE = CacheControl.maxAge(1, TimeUnit.HOURS).cachePublic();
+
+	private final Map<String, Profile> profiles = new LinkedHashMap<>();
+
+	ApiProfiles(ObjectMapper mapper) throws JsonProcessingException {
+		register("item", Item.class, mapper);
+		register("cart", Cart.class, mapper);
+		register("cartItem", CartItem.class, mapper);
+	}
+
+	private void register(String resource, Class<?> type, ObjectMapper mapper) throws JsonProcessingException {
+		this.profiles.put(resource, new Profile(mapper.writeValueAsBytes(profileOf(type))));
+	}
+
+	/**
+	 * Look up the profile of a resource, or {@literal null} if there is none.
+	 */
+	Profile get(String resource) {
+		return this.profiles.get(resource);
+	}
+
+	static Alps profileOf(Class<?> type) {
+		return alps()
+				.descriptor(Collections.singletonList(descriptor()
+						.id(type.getSimpleName() + "-representation")
+						.descriptor(Arrays.stream(type.getDeclaredFields())
+								.filter(field -> !field.isSynthetic() && !Modifier.isStatic(field.getModifiers()))
+								.map(Field::getName)
+								.map(name -> descriptor()
+										.name(name)
+										.type(Type.SEMANTIC)
+										.build())
+								.collect(Collectors.toList()))
+						.build()))
+				.build();
+	}
+
+	static final class Profile {
+
+		private final byte[] body;
+
+		private final byte[] gzipped;
+
+		private final String etag;
+
+		private final String gzippedEtag;
+
+		private final ResponseEntity<byte[]> json;
+
+		private final ResponseEntity<byte[]> alpsJson;
+
+		private final ResponseEntity<byte[]> gzippedJson;
+
+		private final ResponseEntity<byte[]> gzippedAlpsJson;
+
+		private final ResponseEntity<byte[]> notModified;
+
+		private final ResponseEntity<byte[]> gzippedNotModified;
+
+		private Profile(byte[] body) {
+			this.body = body;
+			this.gzipped = gzip(body);
+			// Hashing once at startup keeps the tag stable across restarts and nodes.
+			this.etag = "profile-" + DigestUtils.md5DigestAsHex(body);
+			// Strong validators must differ between byte sequences, so the gzipped bytes get their own.
+			this.gzippedEtag = this.etag + "-" + GZIP;
+			this.json = ok(MediaType.APPLICATION_JSON, this.body, this.etag, null);
+			this.alpsJson = ok(MediaTypes.ALPS_JSON, this.body, this.etag, null);
+			this.gzippedJson = ok(MediaType.APPLICATION_JSON, this.gzipped, this.gzippedEtag, GZIP);
+			this.gzippedAlpsJson = ok(MediaTypes.ALPS_JSON, this.gzipped, this.gzippedEtag, GZIP);
+			this.notModified = notModified(this.etag);
+			this.gzippedNotModified = notModified(this.gzippedEtag);
+		}
+
+		private static ResponseEntity<byte[]> notModified(String etag) {
+			return ResponseEntity.status(HttpStatus.NOT_MODIFIED) //
+					.cacheControl(PROFILE_CACHE) //
+					.eTag(etag) //
+					.varyBy(HttpHeaders.ACCEPT_ENCODING) //
+					.build();
+		}
+
+		private static ResponseEntity<byte[]> ok(MediaType mediaType, byte[] content, String etag,
+				String contentEncoding) {
+			ResponseEntity.BodyBuilder builder = ResponseEntity.ok() //
+					.contentType(mediaType) //
+					.contentLength(content.length) //
+					.cacheControl(PROFILE_CACHE) //
+					.eTag(etag) //
+					.varyBy(HttpHeaders.ACCEPT_ENCODING);
+			if (contentEncoding != null) {
+				// The server's own compression leaves responses with a Content-Encoding alone.
+				builder.header(HttpHeaders.CONTENT_ENCODING, contentEncoding);
+			}
+			return builder.body(content);
+		}
+
+		private static byte[] gzip(byte[] content) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(content.length);
+			try (GZIPOutputStream out = new GZIPOutputStream(bytes)) {
+				out.write(content);
+			} catch (IOException e) {
+				throw new UncheckedIOException(e);
+			}
+			return bytes.toByteArray();
+		}
+
+		String etag() {
+			return this.etag;
+		}
+
+		String gzippedEtag() {
+			return this.gzippedEtag;
+		}
+
+		/**
+		 * Answer a conditional request with 304 if the client holds either encoding of the
+		 * profile, or return {@literal null} if it has to be sent. A client that switched
+		 * encodings gets the tag of the one it would now receive.
+		 */
+		ResponseEntity<byte[]> notModified(HttpHeaders headers) {
+			for (String tag : headers.getIfNoneMatch()) {
+				String opaque = tag.startsWith("W/") ? tag.substring(2) : tag;
+				opaque = StringUtils.trimLeadingCharacter(StringUtils.trimTrailingCharacter(opaque, '"'), '"');
+				if ("*".equals(opaque) || this.etag.equals(opaque) || this.gzippedEtag.equals(opaque)) {
+					return acceptsGzip(headers) ? this.gzippedNotModified : this.notModified;
+				}
+			}
+			return null;
+		}
+
+		/**
+		 * Pick the representation for the given request headers. Plain JSON stays the
+		 * default; {@literal application/alps+json} is only served when asked for by name,
+		 * and the precompressed bytes whenever the client accepts gzip.
+		 */
+		ResponseEntity<byte[]> response(HttpHeaders headers) {
+			boolean alps = false;
+			for (MediaType mediaType : headers.getAccept()) {
+				if (!mediaType.isWildcardType() && !mediaType.isWildcardSubtype()
+						&& mediaType.isCompatibleWith(MediaTypes.ALPS_JSON)) {
+					alps = true;
+					break;
+				}
+			}
+			if (acceptsGzip(headers)) {
+				return alps ? this.gzippedAlpsJson : this.gzippedJson;
+			}
+			return alps ? this.alpsJson : this.json;
+		}
+
+		/**
+		 * Whether gzip is acceptable: its own q-value decides if it is listed, otherwise that
+		 * of {@literal *}, and {@literal q=0} means "not acceptable".
+		 */
+		static boolean acceptsGzip(HttpHeaders headers) {
+			Double gzip = null;
+			Double any = null;
+			for (String value : headers.getOrEmpty(HttpHeaders.ACCEPT_ENCODING)) {
+				for (String coding : StringUtils.tokenizeToStringArray(value, ",")) {
+					String[] parts = StringUtils.tokenizeToStringArray(coding, ";");
+					if (parts.length == 0) {
+						continue;
+					}
+					if (GZIP.equalsIgnoreCase(parts[0]) || "x-gzip".equalsIgnoreCase(parts[0])) {
+						gzip = quality(parts);
+					} else if ("*".equals(parts[0])) {
+						any = quality(parts);
+					}
+				}
+			}
+			Double quality = gzip != null ? gzip : any;
+			return quality != null && quality > 0;
+		}
+
+		private static double quality(String[] parts) {
+			for (int i = 1; i < parts.length; i++) {
+				String parameter = parts[i].replace(" ", "");
+				if (parameter.regionMatches(true, 0, "q=", 0, 2)) {
+					try {
+						return Double.parseDouble(parameter.substring(2));
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+			return 1;
+		}
+	}
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.boot.web.codec.CodecCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.codec.cbor.Jackson2CborDecoder;
+import org.springframework.http.codec.cbor.Jackson2CborEncoder;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+
+/**
+ * Compact binary representations for internal API consumers. A request that accepts
+ * {@literal application/cbor} or {@literal application/x-jackson-smile} gets the same
+ * item and cart models as JSON, with links in the plain (non-HAL) layout.
+ *
+ * Smile is registered by WebFlux as soon as it is on the classpath; CBOR is added here,
+ * using the application's Jackson settings.
+ */
+@Configuration
+public class BinaryCodecsConfig {
+
+	@Bean
+	CodecCustomizer cborCodecCustomizer(Jackson2ObjectMapperBuilder builder) {
+		ObjectMapper cborMapper = builder.createXmlMapper(false).factory(new CBORFactory()).build();
+
+		return configurer -> {
+			configurer.customCodecs().register(new Jackson2CborEncoder(cborMapper));
+			configurer.customCodecs().register(new Jackson2CborDecoder(cborMapper));
+		};
+	}
+}
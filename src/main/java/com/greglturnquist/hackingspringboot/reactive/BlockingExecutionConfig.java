@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * The scheduler blocking work is moved to, so that it never runs on an event loop thread:
+ * the synchronous user lookup, BCrypt password checks and any other blocking integration.
+ *
+ * With {@code blocking.scheduler=virtual} every task gets its own virtual thread, so there is
+ * no pool to size; {@code bounded-elastic} uses Reactor's bounded elastic pool; the default,
+ * {@code auto}, picks virtual threads when the JVM offers them (Java 21 and later).
+ */
+@Configuration
+public class BlockingExecutionConfig {
+
+	@Bean(destroyMethod = "dispose")
+	Scheduler blockingScheduler(@Value("${blocking.scheduler:auto}") String mode) {
+		return scheduler(mode);
+	}
+
+	static Scheduler scheduler(String mode) {
+		switch (mode) {
+			case "virtual":
+				ExecutorService executor = virtualThreadPerTaskExecutor();
+				if (executor == null) {
+					throw new IllegalStateException("blocking.scheduler=virtual needs Java 21 or later, but runs on "
+							+ System.getProperty("java.version"));
+				}
+				return virtual(executor);
+			case "bounded-elastic":
+				return boundedElastic();
+			case "auto":
+				// The executor the probe created is the one used, so none is left behind unused.
+				ExecutorService probed = virtualThreadPerTaskExecutor();
+				return probed != null ? virtual(probed) : boundedElastic();
+			default:
+				throw new IllegalArgumentException("Unknown blocking.scheduler " + mode
+						+ ", expected auto, virtual or bounded-elastic");
+		}
+	}
+
+	private static Scheduler virtual(ExecutorService executor) {
+		return Schedulers.fromExecutorService(executor, "virtual");
+	}
+
+	private static Scheduler boundedElastic() {
+		return Schedulers.newBoundedElastic(Schedulers.DEFAULT_BOUNDED_ELASTIC_SIZE,
+				Schedulers.DEFAULT_BOUNDED_ELASTIC_QUEUESIZE, "blocking");
+	}
+
+	/**
+	 * {@code Executors.newVirtualThreadPerTaskExecutor()}, looked up reflectively since the
+	 * application is compiled for Java 8; {@literal null} on JVMs without virtual threads.
+	 */
+	static ExecutorService virtualThreadPerTaskExecutor() {
+		try {
+			return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (ReflectiveOperationException e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,200 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.ReactiveHealthIndicator;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.ApplicationContext;
+import org.springframework.boot.web.context.WebServerApplicationContext;
+import org.springframework.context.event.EventListener;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.hateoas.MediaTypes;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.function.client.WebClient;
+import org.springframework.web.reactive.function.client.WebClientResponseException;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+/**
+ * Warms up the application once it is up, and keeps the readiness probe
+ * ({@code /actuator/health/readiness}) down until that is done, so a new instance only gets
+ * traffic when it can answer it at full speed. The warmup
+ *
+ * <ul>
+ * <li>opens {@code warmup.connections} connections to every database the application uses;</li>
+ * <li>loads the catalog;</li>
+ * <li>requests the home page and the item API {@code warmup.iterations} times each through
+ * the application's own server, signed in as a {@link WarmupUser}, which primes the
+ * Jackson serializers, Thymeleaf templates, HATEOAS link builders and security filters and
+ * gives the JIT a head start on all of them.</li>
+ * </ul>
+ *
+ * Failing steps are retried with backoff for up to {@code warmup.timeout}. Past that the
+ * instance reports ready anyway, flagged as {@code degraded}: serving cold beats never
+ * serving at all.
+ *
+ * With {@code startup.exit-when-warm=true} the application shuts down as soon as it is warm,
+ * which is how the build records the class data sharing archive. There the timeout counts
+ * from startup and ends the application with exit code 1, so the build fails instead of
+ * hanging.
+ */
+@Component
+class CacheWarmup implements ReactiveHealthIndicator {
+
+	private final InventoryService inventoryService;
+
+	private final CartRouter cartRouter;
+
+	private final ReactiveMongoOperations operations;
+
+	private final WarmupUser warmupUser;
+
+	private final WebClient.Builder webClient;
+
+	private final ApplicationContext context;
+
+	private final int connections;
+
+	private final int iterations;
+
+	private final Duration timeout;
+
+	private final boolean exitWhenWarm;
+
+	private volatile long warmMillis = -1;
+
+	private volatile boolean degraded;
+
+	CacheWarmup(InventoryService inventoryService, CartRouter cartRouter, ReactiveMongoOperations operations,
+			WarmupUser warmupUser, WebClient.Builder webClient, ApplicationContext context,
+			@Value("${warmup.connections:10}") int connections,
+			@Value("${warmup.iterations:20}") int iterations,
+			@Value("${warmup.timeout:PT2M}") Duration timeout,
+			@Value("${startup.exit-when-warm:false}") boolean exitWhenWarm) {
+		this.inventoryService = inventoryService;
+		this.cartRouter = cartRouter;
+		this.operations = operations;
+		this.warmupUser = warmupUser;
+		this.webClient = webClient;
+		this.context = context;
+		this.connections = connections;
+		this.iterations = iterations;
+		this.timeout = timeout;
+		this.exitWhenWarm = exitWhenWarm;
+		if (exitWhenWarm) {
+			// Also covers a startup that never gets as far as the warmup.
+			Mono.delay(timeout).subscribe(tick -> {
+				if (!isWarm()) {
+					exit(1);
+				}
+			});
+		}
+	}
+
+	@EventListener(ApplicationReadyEvent.class)
+	void warmUp() {
+		long start = System.nanoTime();
+		warm()
+				.retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofMillis(100)).maxBackoff(Duration.ofSeconds(5)))
+				.timeout(this.timeout)
+				.subscribe(null, e -> {
+					this.degraded = true;
+					this.warmMillis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+					if (this.exitWhenWarm) {
+						exit(1);
+					}
+				}, () -> {
+					this.warmMillis = Duration.ofNanos(System.nanoTime() - start).toMillis();
+					if (this.exitWhenWarm) {
+						exit(0);
+					}
+				});
+	}
+
+	private void exit(int exitCode) {
+		System.exit(SpringApplication.exit(this.context, () -> exitCode));
+	}
+
+	Mono<Void> warm() {
+		return openConnections()
+				// Loading the catalog also primes the copy served while Mongo is down.
+				.then(this.inventoryService.getInventory().then())
+				.then(exerciseHotPaths());
+	}
+
+	private Mono<Void> openConnections() {
+		Set<ReactiveMongoOperations> databases = new LinkedHashSet<>(this.cartRouter.shards());
+		databases.add(this.operations);
+		return Flux.fromIterable(databases)
+				.flatMap(database -> Flux.range(0, this.connections)
+						.flatMap(i -> database.executeCommand("{ ping: 1 }"), this.connections))
+				.then();
+	}
+
+	private Mono<Void> exerciseHotPaths() {
+		if (!(this.context instanceof WebServerApplicationContext)) {
+			return Mono.empty();
+		}
+		int port = ((WebServerApplicationContext) this.context).getWebServer().getPort();
+		return Mono.defer(() -> {
+			String[] user = this.warmupUser.create();
+			WebClient client = this.webClient.clone()
+					.baseUrl("http://localhost:" + port)
+					.defaultHeaders(headers -> headers.setBasicAuth(user[0], user[1]))
+					.build();
+			return Flux.range(0, this.iterations)
+					.concatMap(i -> request(client, "/", MediaType.TEXT_HTML)
+							.then(request(client, "/api/items", MediaTypes.HAL_JSON)))
+					.then();
+		}).doFinally(signal -> this.warmupUser.remove());
+	}
+
+	private static Mono<Void> request(WebClient client, String uri, MediaType mediaType) {
+		return client.get().uri(uri)
+				.accept(mediaType)
+				.retrieve()
+				.toBodilessEntity()
+				// An error page has been rendered too; don't hold readiness back for it.
+				.onErrorResume(WebClientResponseException.class, e -> Mono.empty())
+				.then();
+	}
+
+	boolean isWarm() {
+		return this.warmMillis >= 0;
+	}
+
+	@Override
+	public Mono<Health> health() {
+		if (!isWarm()) {
+			return Mono.just(Health.outOfService().withDetail("warmup", "in progress").build());
+		}
+		Health.Builder health = Health.up().withDetail("warmupMillis", this.warmMillis);
+		return Mono.just(this.degraded //
+				? health.withDetail("warmup", "degraded, timed out after " + this.timeout).build() //
+				: health.build());
+	}
+}
@@ -15,11 +15,16 @@
  */
 package com.greglturnquist.hackingspringboot.reactive;
 
+import java.math.BigDecimal;
+import java.time.Instant;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Objects;
 
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
 
 /**
  * @author Greg Turnquist
@@ -29,6 +34,11 @@ class Cart {
 
 	private @Id String id;
 	private List<CartItem> cartItems;
+	private long totalMinor;
+	private int itemCount;
+	private @Version Long version;
+	private Instant lastTouched;
+	private String migratedFrom;
 
 	private Cart() {}
 
@@ -58,6 +68,90 @@ class Cart {
 		this.cartItems = cartItems;
 	}
 
+	/**
+	 * Value of the cart in minor currency units (cents), kept up to date by every mutation.
+	 */
+	public long getTotalMinor() {
+		return totalMinor;
+	}
+
+	/**
+	 * The total as a decimal amount in {@link Item#CURRENCY}, for display; it is not part of
+	 * the stored or serialized cart.
+	 */
+	@JsonIgnore
+	public BigDecimal getTotal() {
+		return Item.fromMinorUnits(this.totalMinor);
+	}
+
+	public void setTotalMinor(long totalMinor) {
+		this.totalMinor = totalMinor;
+	}
+
+	public int getItemCount() {
+		return itemCount;
+	}
+
+	public void setItemCount(int itemCount) {
+		this.itemCount = itemCount;
+	}
+
+	void adjustTotals(Item item, int quantityDelta) {
+		// Exact long arithmetic: an overflowing total fails instead of wrapping around.
+		this.totalMinor = Math.addExact(this.totalMinor, Math.multiplyExact(item.getPriceMinor(), quantityDelta));
+		this.itemCount += quantityDelta;
+	}
+
+	/**
+	 * Carts stored before totals were tracked start out at zero; rebuild them from the lines.
+	 */
+	void recalculateTotalsIfMissing() {
+		if (this.itemCount == 0 && !this.cartItems.isEmpty()) {
+			recalculateTotals();
+		}
+	}
+
+	void recalculateTotals() {
+		this.totalMinor = 0;
+		this.itemCount = 0;
+		this.cartItems.forEach(cartItem -> adjustTotals(cartItem.getItem(), cartItem.getQuantity()));
+	}
+
+	/**
+	 * When the cart was last changed. Carts untouched for {@code cart.expire-after} are
+	 * removed by a TTL index.
+	 */
+	public Instant getLastTouched() {
+		return lastTouched;
+	}
+
+	public void setLastTouched(Instant lastTouched) {
+		this.lastTouched = lastTouched;
+	}
+
+	void touch() {
+		this.lastTouched = Instant.now();
+	}
+
+	/**
+	 * Id of the legacy cart whose lines were moved into this one, see {@link CartMigrations}.
+	 */
+	public String getMigratedFrom() {
+		return migratedFrom;
+	}
+
+	public void setMigratedFrom(String migratedFrom) {
+		this.migratedFrom = migratedFrom;
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+
+	public void setVersion(Long version) {
+		this.version = version;
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o)
@@ -65,16 +159,18 @@ class Cart {
 		if (o == null || getClass() != o.getClass())
 			return false;
 		Cart cart = (Cart) o;
-		return Objects.equals(id, cart.id) && Objects.equals(cartItems, cart.cartItems);
+		return totalMinor == cart.totalMinor && itemCount == cart.itemCount && Objects.equals(id, cart.id)
+				&& Objects.equals(cartItems, cart.cartItems);
 	}
 
 	@Override
 	public int hashCode() {
-		return Objects.hash(id, cartItems);
+		return Objects.hash(id, cartItems, totalMinor, itemCount);
 	}
 
 	@Override
 	public String toString() {
-		return "Cart{" + "id='" + id + '\'' + ", cartItems=" + cartItems + '}';
+		return "Cart{" + "id='" + id + '\'' + ", cartItems=" + cartItems + ", totalMinor=" + totalMinor
+				+ ", itemCount=" + itemCount + '}';
 	}
 }
@@ -0,0 +1,509 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static com.mongodb.client.model.Filters.eq;
+import static com.mongodb.client.model.Filters.nin;
+import static com.mongodb.client.model.Updates.combine;
+import static com.mongodb.client.model.Updates.inc;
+import static com.mongodb.client.model.Updates.set;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.bucket;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.group;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.match;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.newAggregation;
+import static org.springframework.data.mongodb.core.aggregation.Aggregation.unwind;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+import org.bson.Document;
+import org.bson.conversions.Bson;
+import org.bson.types.ObjectId;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.FindAndModifyOptions;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.aggregation.AggregationOptions;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.support.CronSequenceGenerator;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.client.model.BulkWriteOptions;
+import com.mongodb.client.model.DeleteManyModel;
+import com.mongodb.client.model.UpdateManyModel;
+import com.mongodb.client.model.UpdateOneModel;
+import com.mongodb.client.model.UpdateOptions;
+import com.mongodb.client.model.WriteModel;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Merchandising reports over carts and orders, answered from small rollup collections
+ * instead of the carts themselves: {@link ItemDemand} per item and {@link CartValueBucket}
+ * per range of cart totals, bounded by {@code analytics.cart-value-boundaries}.
+ *
+ * Cart changes, checkouts and expiries are recorded in memory and applied to the rollups
+ * every {@code analytics.flush-interval} as one unordered bulk write of {@code $inc}s per
+ * collection, so the cart path never waits on them. A failed flush keeps its changes for
+ * the next one, and stopping the application flushes what is left.
+ *
+ * Once a night, at {@code analytics.rebuild-cron}, the rollups are recomputed from every
+ * cart shard with aggregation pipelines that run on the server, may spill to disk and are
+ * read back through a cursor. That corrects any drift, e.g. changes lost with a node that
+ * stopped between flushes. The number of units added and removed only exists as a running
+ * count and is never rebuilt.
+ *
+ * Only one node rebuilds at a time: the rebuild first takes a lease, a document in
+ * {@value #RUNS} that it holds for up to {@code analytics.rebuild-lease}, and nodes that
+ * find it taken skip their run. Each pending change remembers when it was last recorded,
+ * and the lease document when the last completed rebuild started; changes recorded
+ * entirely before that are already part of the rebuilt counts, so any node still holding
+ * them drops them instead of counting them twice. This relies on the nodes' clocks agreeing
+ * to within a flush interval.
+ *
+ * Flushes and rebuilds run on timers of their own, not on the shared task scheduler.
+ */
+@Component
+class CartAnalytics implements SmartLifecycle {
+
+	static final String RUNS = "analyticsRuns";
+
+	private static final String REBUILD = "rebuild";
+
+	private static final AggregationOptions STREAMED = AggregationOptions.builder()
+			.allowDiskUse(true)
+			.cursorBatchSize(1000)
+			.build();
+
+	static final Aggregation CARTED_ITEMS = newAggregation(
+			unwind("cartItems"),
+			group("cartItems.item._id")
+					.first("cartItems.item.name").as("name")
+					.sum("cartItems.quantity").as("inCarts"))
+			.withOptions(STREAMED);
+
+	static final Aggregation ORDERED_ITEMS = newAggregation(
+			unwind("lines"),
+			group("lines.itemId")
+					.first("lines.name").as("name")
+					.sum("lines.quantity").as("ordered"))
+			.withOptions(STREAMED);
+
+	private static final UpdateOptions UPSERT = new UpdateOptions().upsert(true);
+
+	private static final BulkWriteOptions UNORDERED = new BulkWriteOptions().ordered(false);
+
+	private final CartRouter router;
+
+	private final ReactiveMongoOperations operations;
+
+	private final MongoGuard guard;
+
+	private final long[] boundaries;
+
+	private final Aggregation cartValues;
+
+	private final Mono<Void> indexes;
+
+	private final Duration flushInterval;
+
+	private final CronSequenceGenerator rebuildCron;
+
+	private final Duration rebuildLease;
+
+	private final String node = UUID.randomUUID().toString();
+
+	private final Map<String, Demand> pendingItems = new ConcurrentHashMap<>();
+
+	private final Map<Long, Count> pendingBuckets = new ConcurrentHashMap<>();
+
+	private volatile Disposable timers;
+
+	CartAnalytics(CartRouter router, ReactiveMongoOperations operations, MongoGuard guard,
+			@Value("${analytics.cart-value-boundaries:0,1000,2500,5000,10000,25000,50000}") long[] boundaries,
+			@Value("${analytics.flush-interval:PT5S}") Duration flushInterval,
+			@Value("${analytics.rebuild-cron:0 30 3 * * *}") String rebuildCron,
+			@Value("${analytics.rebuild-lease:PT1H}") Duration rebuildLease) {
+		this.router = router;
+		this.operations = operations;
+		this.guard = guard;
+		this.boundaries = boundaries(boundaries);
+		this.flushInterval = flushInterval;
+		this.rebuildCron = new CronSequenceGenerator(rebuildCron);
+		this.rebuildLease = rebuildLease;
+		this.cartValues = newAggregation(
+				match(where("itemCount").gt(0)),
+				bucket("totalMinor")
+						.withBoundaries(LongStream.concat(LongStream.of(this.boundaries), LongStream.of(Long.MAX_VALUE))
+								.boxed()
+								.toArray())
+						.andOutputCount().as("carts"))
+				.withOptions(STREAMED);
+		this.indexes = MongoGuard.cacheSuccess(guard.mono(ItemDemand.COLLECTION, "ensureIndex", Mono.defer(() ->
+				operations.indexOps(ItemDemand.class).ensureIndex(new Index().on("inCarts", Sort.Direction.DESC))))
+				.then());
+	}
+
+	@Override
+	public void start() {
+		Disposable flushes = Flux.interval(this.flushInterval)
+				.onBackpressureDrop()
+				// A failed flush has put its changes back for the next one.
+				.concatMap(tick -> flushPending().onErrorResume(e -> Mono.empty()), 1)
+				.subscribe();
+		Disposable rebuilds = Mono.defer(() -> Mono.delay(untilNextRebuild()))
+				.then(Mono.defer(this::rebuild).onErrorResume(e -> Mono.empty()))
+				.repeat()
+				.subscribe();
+		this.timers = () -> {
+			flushes.dispose();
+			rebuilds.dispose();
+		};
+	}
+
+	private Duration untilNextRebuild() {
+		Date now = new Date();
+		return Duration.ofMillis(this.rebuildCron.next(now).getTime() - now.getTime());
+	}
+
+	@Override
+	public void stop() {
+		Disposable timers = this.timers;
+		if (timers != null) {
+			timers.dispose();
+			this.timers = null;
+			flushPending().onErrorResume(e -> Mono.empty()).block(Duration.ofSeconds(10));
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		return this.timers != null;
+	}
+
+	/**
+	 * Record a change to a cart, given its total and number of units before and the cart
+	 * afterwards, along with the units added and removed per item.
+	 */
+	void cartChanged(long totalBefore, int itemCountBefore, Cart cart, Map<String, Integer> added,
+			Map<String, Integer> removed) {
+		if (itemCountBefore > 0) {
+			countCart(totalBefore, -1);
+		}
+		if (cart.getItemCount() > 0) {
+			countCart(cart.getTotalMinor(), 1);
+		}
+		added.forEach((itemId, quantity) -> record(itemId, nameOf(cart, itemId), quantity, quantity, 0, 0));
+		removed.forEach((itemId, quantity) -> record(itemId, null, -quantity, 0, quantity, 0));
+	}
+
+	void orderPlaced(Order order) {
+		countCart(order.getTotalMinor(), -1);
+		order.getLines().forEach(line -> record(line.getItemId(), line.getName(), -line.getQuantity(), 0, 0,
+				line.getQuantity()));
+	}
+
+	void cartExpired(Cart cart) {
+		cart.recalculateTotalsIfMissing();
+		if (cart.getItemCount() > 0) {
+			countCart(cart.getTotalMinor(), -1);
+		}
+		cart.getCartItems().forEach(cartItem -> record(cartItem.getItem().getId(), cartItem.getItem().getName(),
+				-cartItem.getQuantity(), 0, 0, 0));
+	}
+
+	private void countCart(long totalMinor, long carts) {
+		this.pendingBuckets.merge(bucketOf(this.boundaries, totalMinor), new Count(carts, System.currentTimeMillis()),
+				Count::plus);
+	}
+
+	private void record(String itemId, String name, long inCarts, long added, long removed, long ordered) {
+		Demand change = new Demand(name, inCarts, added, removed, ordered, System.currentTimeMillis());
+		this.pendingItems.merge(itemId, change, Demand::plus);
+	}
+
+	/**
+	 * Bucket boundaries in ascending order, always starting at zero.
+	 */
+	static long[] boundaries(long[] configured) {
+		return LongStream.concat(LongStream.of(0), LongStream.of(configured))
+				.filter(boundary -> boundary >= 0)
+				.distinct()
+				.sorted()
+				.toArray();
+	}
+
+	/**
+	 * The lower bound of the bucket a cart total falls into.
+	 */
+	static long bucketOf(long[] boundaries, long totalMinor) {
+		int index = Arrays.binarySearch(boundaries, totalMinor);
+		return boundaries[index >= 0 ? index : Math.max(-index - 2, 0)];
+	}
+
+	Flux<ItemDemand> mostCarted(int limit) {
+		return this.guard.flux(ItemDemand.COLLECTION, "mostCarted", this.operations.find(new Query()
+				.with(Sort.by(Sort.Direction.DESC, "inCarts"))
+				.limit(limit), ItemDemand.class));
+	}
+
+	Mono<ItemDemand> demand(String itemId) {
+		return this.guard.mono(ItemDemand.COLLECTION, "findById", this.operations.findById(itemId, ItemDemand.class));
+	}
+
+	Flux<CartValueBucket> cartValues() {
+		return this.guard.flux(CartValueBucket.COLLECTION, "findAll", this.operations.find(new Query()
+				.with(Sort.by("lowerBoundMinor")), CartValueBucket.class));
+	}
+
+	/**
+	 * Apply the changes recorded since the last flush. Each pending entry is taken out of
+	 * its map on its own, so changes recorded meanwhile simply wait for the next flush.
+	 * Changes the last rebuild already counted are dropped.
+	 */
+	Mono<Void> flushPending() {
+		return this.indexes.then(lastSnapshot()).flatMap(snapshot -> {
+			Map<String, Demand> items = take(this.pendingItems);
+			Map<Long, Count> buckets = take(this.pendingBuckets);
+			items.values().removeIf(demand -> demand.recordedAt < snapshot);
+			buckets.values().removeIf(count -> count.recordedAt < snapshot);
+			return Mono.whenDelayError(
+					bulkWrite(ItemDemand.COLLECTION, itemWrites(items))
+							.doOnError(e -> items.forEach((itemId, demand) -> this.pendingItems.merge(itemId, demand,
+									Demand::plus))),
+					bulkWrite(CartValueBucket.COLLECTION, bucketWrites(buckets))
+							.doOnError(e -> buckets.forEach((bucket, count) -> this.pendingBuckets.merge(bucket, count,
+									Count::plus))));
+		});
+	}
+
+	/**
+	 * When the last completed rebuild started, in epoch milliseconds.
+	 */
+	private Mono<Long> lastSnapshot() {
+		return this.operations.findById(REBUILD, Document.class, RUNS)
+				.flatMap(run -> Mono.justOrEmpty(run.getDate("snapshotAt")))
+				.map(Date::getTime)
+				.defaultIfEmpty(0L);
+	}
+
+	private static List<WriteModel<Document>> itemWrites(Map<String, Demand> items) {
+		List<WriteModel<Document>> itemWrites = new ArrayList<>();
+		items.forEach((itemId, demand) -> {
+			List<Bson> changes = new ArrayList<>(Arrays.asList(inc("inCarts", demand.inCarts),
+					inc("added", demand.added), inc("removed", demand.removed), inc("ordered", demand.ordered)));
+			if (demand.name != null) {
+				changes.add(set("name", demand.name));
+			}
+			itemWrites.add(new UpdateOneModel<>(eq("_id", storedId(itemId)), combine(changes), UPSERT));
+		});
+		return itemWrites;
+	}
+
+	private static List<WriteModel<Document>> bucketWrites(Map<Long, Count> buckets) {
+		List<WriteModel<Document>> bucketWrites = new ArrayList<>();
+		buckets.forEach((bucket, count) -> bucketWrites.add(new UpdateOneModel<>(eq("_id", bucket),
+				inc("carts", count.carts), UPSERT)));
+		return bucketWrites;
+	}
+
+	/**
+	 * Rebuild the rollups unless another node is doing so already, yielding whether this
+	 * one did.
+	 */
+	Mono<Boolean> rebuild() {
+		Instant started = Instant.now();
+		Query free = query(where("_id").is(REBUILD)
+				.orOperator(where("leasedUntil").exists(false), where("leasedUntil").lt(Date.from(started))));
+		Query held = query(where("_id").is(REBUILD).and("owner").is(this.node));
+		Update lease = new Update().set("owner", this.node)
+				.set("leasedUntil", Date.from(started.plus(this.rebuildLease)));
+		return this.operations.findAndModify(free, lease, FindAndModifyOptions.options().upsert(true).returnNew(true),
+				Document.class, RUNS)
+				// The upsert collides with the lease of another node.
+				.onErrorResume(DuplicateKeyException.class, e -> Mono.empty())
+				.flatMap(run -> recompute()
+						.then(this.operations.updateFirst(held, new Update()
+								.set("snapshotAt", Date.from(started))
+								.set("leasedUntil", new Date()), RUNS))
+						.onErrorResume(e -> this.operations.updateFirst(held, new Update()
+								.set("leasedUntil", new Date()), RUNS)
+								.then(Mono.error(e)))
+						.thenReturn(true))
+				.defaultIfEmpty(false);
+	}
+
+	/**
+	 * Recompute the units in carts and ordered per item, and the number of carts per
+	 * bucket, from every shard, and overwrite the rollups with them.
+	 */
+	private Mono<Void> recompute() {
+		Mono<Map<String, Demand>> items = Flux.fromIterable(this.router.shards())
+				.concatMap(shard -> Flux.concat(
+						shard.aggregate(CARTED_ITEMS, shard.getCollectionName(Cart.class), Document.class),
+						shard.aggregate(ORDERED_ITEMS, shard.getCollectionName(Order.class), Document.class)))
+				.filter(counts -> counts.get("_id") != null)
+				.reduceWith(HashMap::new, (totals, counts) -> {
+					totals.merge(counts.get("_id").toString(), new Demand(counts.getString("name"),
+							number(counts, "inCarts"), 0, 0, number(counts, "ordered"), 0), Demand::plus);
+					return totals;
+				});
+		Mono<Map<Long, Long>> buckets = Flux.fromIterable(this.router.shards())
+				.concatMap(shard -> shard.aggregate(this.cartValues, shard.getCollectionName(Cart.class), Document.class))
+				.reduceWith(HashMap::new, (totals, counts) -> {
+					totals.merge(number(counts, "_id"), number(counts, "carts"), Long::sum);
+					return totals;
+				});
+
+		return flushPending()
+				.then(items)
+				.flatMap(totals -> {
+					List<WriteModel<Document>> writes = new ArrayList<>();
+					totals.forEach((itemId, demand) -> {
+						List<Bson> counts = new ArrayList<>(Arrays.asList(set("inCarts", demand.inCarts),
+								set("ordered", demand.ordered)));
+						if (demand.name != null) {
+							counts.add(set("name", demand.name));
+						}
+						writes.add(new UpdateOneModel<>(eq("_id", storedId(itemId)), combine(counts), UPSERT));
+					});
+					writes.add(new UpdateManyModel<>(nin("_id", totals.keySet().stream()
+							.map(CartAnalytics::storedId)
+							.collect(Collectors.toList())), combine(set("inCarts", 0L), set("ordered", 0L))));
+					return bulkWrite(ItemDemand.COLLECTION, writes);
+				})
+				.then(buckets)
+				.flatMap(totals -> {
+					List<WriteModel<Document>> writes = new ArrayList<>();
+					for (long boundary : this.boundaries) {
+						writes.add(new UpdateOneModel<>(eq("_id", boundary),
+								set("carts", totals.getOrDefault(boundary, 0L)), UPSERT));
+					}
+					// Buckets left over from earlier boundaries.
+					writes.add(new DeleteManyModel<>(nin("_id", LongStream.of(this.boundaries)
+							.boxed()
+							.collect(Collectors.toList()))));
+					return bulkWrite(CartValueBucket.COLLECTION, writes);
+				});
+	}
+
+	private Mono<Void> bulkWrite(String collection, List<WriteModel<Document>> writes) {
+		if (writes.isEmpty()) {
+			return Mono.empty();
+		}
+		return this.operations.execute(collection, mongoCollection -> mongoCollection.bulkWrite(writes, UNORDERED))
+				.then();
+	}
+
+	private static <K, V> Map<K, V> take(Map<K, V> pending) {
+		Map<K, V> taken = new HashMap<>();
+		for (K key : pending.keySet()) {
+			V value = pending.remove(key);
+			if (value != null) {
+				taken.put(key, value);
+			}
+		}
+		return taken;
+	}
+
+	/**
+	 * Ids that look like an {@link ObjectId} are stored as one, the same as Spring Data does
+	 * for {@code String} ids, so {@link #demand(String)} finds them.
+	 */
+	private static Object storedId(String id) {
+		return ObjectId.isValid(id) ? new ObjectId(id) : id;
+	}
+
+	private static String nameOf(Cart cart, String itemId) {
+		for (CartItem cartItem : cart.getCartItems()) {
+			if (cartItem.getItem().getId().equals(itemId)) {
+				return cartItem.getItem().getName();
+			}
+		}
+		return null;
+	}
+
+	private static long number(Document document, String key) {
+		Object value = document.get(key);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+
+	/**
+	 * Pending changes to an item's {@link ItemDemand}, and when the last of them was made.
+	 */
+	private static final class Demand {
+
+		private final String name;
+		private final long inCarts;
+		private final long added;
+		private final long removed;
+		private final long ordered;
+		private final long recordedAt;
+
+		Demand(String name, long inCarts, long added, long removed, long ordered, long recordedAt) {
+			this.name = name;
+			this.inCarts = inCarts;
+			this.added = added;
+			this.removed = removed;
+			this.ordered = ordered;
+			this.recordedAt = recordedAt;
+		}
+
+		Demand plus(Demand other) {
+			return new Demand(other.name != null ? other.name : this.name, this.inCarts + other.inCarts,
+					this.added + other.added, this.removed + other.removed, this.ordered + other.ordered,
+					Math.max(this.recordedAt, other.recordedAt));
+		}
+	}
+
+	/**
+	 * Pending change to the number of carts in a {@link CartValueBucket}.
+	 */
+	private static final class Count {
+
+		private final long carts;
+		private final long recordedAt;
+
+		Count(long carts, long recordedAt) {
+			this.carts = carts;
+			this.recordedAt = recordedAt;
+		}
+
+		Count plus(Count other) {
+			return new Count(this.carts + other.carts, Math.max(this.recordedAt, other.recordedAt));
+		}
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.index.ReactiveIndexOperations;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Keeps the cart collection down to carts that are actually in use. Carts nobody changed
+ * for {@code cart.expire-after} are deleted by this job, which hands their reserved stock
+ * back and takes them out of the {@link CartAnalytics} rollups; a TTL index on
+ * {@code lastTouched} expiring them a day later is the backstop should the job not run.
+ * The job also makes sure every shard has that index, stamps carts from before the
+ * timestamp existed so they can expire too, and deletes empty carts left behind by earlier
+ * versions.
+ *
+ * The collection size after each run is published as {@code carts.documents} and
+ * {@code carts.size}.
+ */
+@Component
+class CartCompaction {
+
+	/**
+	 * How long after {@code cart.expire-after} Mongo removes a cart by itself.
+	 */
+	private static final Duration TTL_GRACE = Duration.ofDays(1);
+
+	private final CartRouter router;
+
+	private final StockLevels stock;
+
+	private final CartAnalytics analytics;
+
+	private final Duration expireAfter;
+
+	private final AtomicLong documents = new AtomicLong();
+
+	private final AtomicLong bytes = new AtomicLong();
+
+	CartCompaction(CartRouter router, StockLevels stock, CartAnalytics analytics,
+			@Value("${cart.expire-after:30d}") Duration expireAfter,
+			MeterRegistry meterRegistry) {
+		this.router = router;
+		this.stock = stock;
+		this.analytics = analytics;
+		this.expireAfter = expireAfter;
+		Gauge.builder("carts.documents", this.documents, AtomicLong::get)
+				.description("Carts stored across all shards")
+				.register(meterRegistry);
+		Gauge.builder("carts.size", this.bytes, AtomicLong::get)
+				.description("Uncompressed size of the stored carts")
+				.baseUnit("bytes")
+				.register(meterRegistry);
+	}
+
+	@Scheduled(initialDelayString = "${cart.compaction.initial-delay:PT1M}",
+			fixedDelayString = "${cart.compaction.interval:PT1H}")
+	void compact() {
+		compactAll().block();
+	}
+
+	Mono<Void> compactAll() {
+		return Flux.fromIterable(this.router.shards())
+				.concatMap(this::compact)
+				.reduce(new long[2], (total, stats) -> {
+					total[0] += stats[0];
+					total[1] += stats[1];
+					return total;
+				})
+				.doOnNext(total -> {
+					this.documents.set(total[0]);
+					this.bytes.set(total[1]);
+				})
+				.then();
+	}
+
+	private Mono<long[]> compact(ReactiveMongoOperations shard) {
+		String collection = shard.getCollectionName(Cart.class);
+		Instant cutoff = Instant.now().minus(this.expireAfter);
+		return ensureTtlIndex(shard, collection)
+				.then(shard.updateMulti(query(where("lastTouched").exists(false)),
+						new Update().set("lastTouched", Instant.now()), Cart.class))
+				.thenMany(shard.find(query(where("lastTouched").lt(cutoff)), Cart.class))
+				// Each cart is removed only if it is still the expired version that was read, and
+				// its stock is released from the removed document, so a cart touched meanwhile
+				// survives and one removed by another node isn't released twice.
+				.concatMap(cart -> shard.findAndRemove(query(where("id").is(cart.getId())
+						.and("version").is(cart.getVersion())
+						.and("lastTouched").lt(cutoff)), Cart.class))
+				.doOnNext(this.analytics::cartExpired)
+				.concatMap(expired -> Flux.fromIterable(expired.getCartItems())
+						.concatMap(cartItem -> this.stock.release(cartItem.getItem().getId(), cartItem.getReserved())))
+				.then()
+				.then(shard.remove(query(where("cartItems").size(0)), Cart.class))
+				.then(shard.executeCommand(new Document("collStats", collection))
+						// A shard that never held a cart has no collection to report on.
+						.onErrorResume(e -> Mono.just(new Document())))
+				.map(stats -> new long[] { number(stats, "count"), number(stats, "size") });
+	}
+
+	/**
+	 * Create the TTL index, or bring an existing one in line with {@code cart.expire-after}:
+	 * creating it again with other options fails with {@code IndexOptionsConflict}, so the
+	 * expiry is changed in place with {@code collMod}. An index without expiry can't be
+	 * changed that way and is dropped and created again.
+	 */
+	private Mono<Void> ensureTtlIndex(ReactiveMongoOperations shard, String collection) {
+		Duration ttl = this.expireAfter.plus(TTL_GRACE);
+		ReactiveIndexOperations indexes = shard.indexOps(Cart.class);
+		Mono<String> create = indexes.ensureIndex(new Index().on("lastTouched", Sort.Direction.ASC).expire(ttl));
+		return indexes.getIndexInfo()
+				.filter(index -> index.isIndexForFields(Collections.singletonList("lastTouched")))
+				.next()
+				.flatMap(index -> {
+					if (index.getExpireAfter().equals(Optional.of(ttl))) {
+						return Mono.just(index.getName());
+					}
+					if (!index.getExpireAfter().isPresent()) {
+						return indexes.dropIndex(index.getName()).then(create);
+					}
+					return shard.executeCommand(new Document("collMod", collection)
+							.append("index", new Document("keyPattern", new Document("lastTouched", 1))
+									.append("expireAfterSeconds", ttl.getSeconds())))
+							.thenReturn(index.getName());
+				})
+				.switchIfEmpty(create)
+				.then();
+	}
+
+	private static long number(Document stats, String key) {
+		Object value = stats.get(key);
+		return value instanceof Number ? ((Number) value).longValue() : 0;
+	}
+}
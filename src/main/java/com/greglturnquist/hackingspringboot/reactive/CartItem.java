@@ -25,6 +25,7 @@ class CartItem {
 
 	private Item item;
 	private int quantity;
+	private int reserved;
 
 	private CartItem() {}
 
@@ -59,6 +60,25 @@ class CartItem {
 		this.quantity = quantity;
 	}
 
+	/**
+	 * How many of the line's units hold stock taken from {@link StockLevels}; units added
+	 * while the item wasn't stock-managed don't.
+	 */
+	public int getReserved() {
+		return reserved;
+	}
+
+	public void setReserved(int reserved) {
+		this.reserved = reserved;
+	}
+
+	/**
+	 * The line's total in minor units of the catalog's currency.
+	 */
+	public long getLineTotalMinor() {
+		return Math.multiplyExact(item.getPriceMinor(), quantity);
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o)
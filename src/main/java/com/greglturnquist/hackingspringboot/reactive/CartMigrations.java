@@ -0,0 +1,102 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+import static com.greglturnquist.hackingspringboot.reactive.HomeController.LEGACY_CART_SUFFIX;
+import static com.greglturnquist.hackingspringboot.reactive.HomeController.cartName;
+
+import java.util.regex.Pattern;
+
+import org.springframework.boot.CommandLineRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.mongodb.core.MongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+/**
+ * Brings carts written by earlier versions of the application up to the current layout.
+ * Every step is idempotent, so it is safe to run on each startup.
+ */
+@Component
+public class CartMigrations {
+
+	private static final int MAX_ATTEMPTS = 5;
+
+	@Bean
+	CommandLineRunner migrateCarts(MongoOperations mongo, CartRouter router) {
+		return args -> {
+			// Carts are saved with optimistic locking; give unversioned ones a starting version.
+			mongo.updateMulti(query(where("version").exists(false)), new Update().set("version", 0L), Cart.class);
+
+			// Re-key carts stored under "<name>'s Cart" by the hash of the name, on their shard.
+			for (Cart legacy : mongo.find(query(where("id").regex(Pattern.quote(LEGACY_CART_SUFFIX) + "$")), Cart.class)) {
+				String legacyId = legacy.getId();
+				String id = cartName(legacyId.substring(0, legacyId.length() - LEGACY_CART_SUFFIX.length()));
+				moveInto(router.route(id), id, legacy).block();
+				// Only once its lines are safely in the new cart.
+				mongo.remove(query(where("id").is(legacyId)), Cart.class);
+			}
+		};
+	}
+
+	/**
+	 * Copy a legacy cart to its new id. If a cart already exists there, because the user
+	 * shopped on a node running the new version already, the legacy lines are merged into it
+	 * unless an earlier, interrupted run did so.
+	 */
+	static Mono<Cart> moveInto(ReactiveMongoOperations shard, String id, Cart legacy) {
+		return Mono.defer(() -> shard.findById(id, Cart.class)
+				.flatMap(existing -> legacy.getId().equals(existing.getMigratedFrom()) //
+						? Mono.just(existing) //
+						: shard.save(merge(existing, legacy)))
+				.switchIfEmpty(Mono.defer(() -> shard.insert(merge(new Cart(id), legacy)))))
+				.retryWhen(Retry.max(MAX_ATTEMPTS)
+						.filter(e -> e instanceof OptimisticLockingFailureException || e instanceof DuplicateKeyException));
+	}
+
+	/**
+	 * Add the legacy cart's lines to a cart, summing the quantities of items in both.
+	 */
+	static Cart merge(Cart cart, Cart legacy) {
+		for (CartItem line : legacy.getCartItems()) {
+			CartItem same = cart.getCartItems().stream()
+					.filter(cartItem -> cartItem.getItem().getId().equals(line.getItem().getId()))
+					.findFirst()
+					.orElse(null);
+			if (same != null) {
+				same.setQuantity(same.getQuantity() + line.getQuantity());
+			} else {
+				CartItem copy = new CartItem(line.getItem());
+				copy.setQuantity(line.getQuantity());
+				cart.getCartItems().add(copy);
+			}
+		}
+		cart.recalculateTotals();
+		cart.setMigratedFrom(legacy.getId());
+		if (cart.getLastTouched() == null) {
+			cart.setLastTouched(legacy.getLastTouched());
+		}
+		return cart;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.Objects;
+
+/**
+ * A change in quantity of one {@link Item} in a {@link Cart}. Positive deltas add items,
+ * negative deltas remove them.
+ */
+class CartOperation {
+
+	private String itemId;
+	private int delta;
+
+	private CartOperation() {}
+
+	CartOperation(String itemId, int delta) {
+		this.itemId = itemId;
+		this.delta = delta;
+	}
+
+	public String getItemId() {
+		return itemId;
+	}
+
+	public void setItemId(String itemId) {
+		this.itemId = itemId;
+	}
+
+	public int getDelta() {
+		return delta;
+	}
+
+	public void setDelta(int delta) {
+		this.delta = delta;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (o == null || getClass() != o.getClass())
+			return false;
+		CartOperation that = (CartOperation) o;
+		return delta == that.delta && Objects.equals(itemId, that.itemId);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(itemId, delta);
+	}
+
+	@Override
+	public String toString() {
+		return "CartOperation{" + "itemId='" + itemId + '\'' + ", delta=" + delta + '}';
+	}
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.ReactiveMongoTransactionManager;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.SimpleReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.convert.MongoConverter;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+import com.mongodb.reactivestreams.client.MongoClient;
+
+/**
+ * Decides which database holds a cart. With {@code cart.shards} unset every cart lives in
+ * the application's own database; otherwise carts are spread over the listed databases by
+ * their id, which is already a uniform hash (see {@link HomeController#cartName(String)}).
+ *
+ * Changing the list of shards moves carts between them, so it has to be accompanied by a
+ * data migration.
+ *
+ * Each shard has its own transaction manager, as a transaction never spans databases.
+ */
+@Component
+class CartRouter {
+
+	private final List<ReactiveMongoOperations> shards;
+
+	private final List<TransactionalOperator> transactions;
+
+	CartRouter(ReactiveMongoOperations operations, ReactiveMongoDatabaseFactory factory, MongoClient client,
+			MongoConverter converter, @Value("${cart.shards:}") List<String> databases) {
+		if (databases.isEmpty()) {
+			this.shards = Collections.singletonList(operations);
+			this.transactions = Collections.singletonList(transactionalOperator(factory));
+		} else {
+			List<ReactiveMongoOperations> shards = new ArrayList<>();
+			List<TransactionalOperator> transactions = new ArrayList<>();
+			for (String database : databases) {
+				ReactiveMongoDatabaseFactory shardFactory = new SimpleReactiveMongoDatabaseFactory(client, database);
+				shards.add(new ReactiveMongoTemplate(shardFactory, converter));
+				transactions.add(transactionalOperator(shardFactory));
+			}
+			this.shards = Collections.unmodifiableList(shards);
+			this.transactions = Collections.unmodifiableList(transactions);
+		}
+	}
+
+	private static TransactionalOperator transactionalOperator(ReactiveMongoDatabaseFactory factory) {
+		return TransactionalOperator.create(new ReactiveMongoTransactionManager(factory));
+	}
+
+	ReactiveMongoOperations route(String cartId) {
+		return this.shards.get(shard(cartId, this.shards.size()));
+	}
+
+	/**
+	 * Runs work in a transaction on the cart's shard; operations on {@link #route(String)}
+	 * inside it take part in the transaction.
+	 */
+	TransactionalOperator transactions(String cartId) {
+		return this.transactions.get(shard(cartId, this.transactions.size()));
+	}
+
+	List<ReactiveMongoOperations> shards() {
+		return this.shards;
+	}
+
+	static int shard(String cartId, int shards) {
+		return Math.floorMod(cartId.hashCode(), shards);
+	}
+}
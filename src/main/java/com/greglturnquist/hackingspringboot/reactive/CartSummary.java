@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+/**
+ * Closed projection of a {@link Cart}, so reading it only fetches these fields and never
+ * the cart's lines.
+ */
+public interface CartSummary {
+
+	String getId();
+
+	long getTotalMinor();
+
+	int getItemCount();
+
+	static CartSummary empty(String id) {
+		return new CartSummary() {
+
+			@Override
+			public String getId() {
+				return id;
+			}
+
+			@Override
+			public long getTotalMinor() {
+				return 0;
+			}
+
+			@Override
+			public int getItemCount() {
+				return 0;
+			}
+		};
+	}
+}
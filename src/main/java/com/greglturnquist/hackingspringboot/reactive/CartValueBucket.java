@@ -0,0 +1,49 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Rollup of how many non-empty carts have a total between this bucket's lower bound,
+ * which is its id, and the next bucket's. Amounts are in minor units.
+ */
+@Document(CartValueBucket.COLLECTION)
+class CartValueBucket {
+
+	static final String COLLECTION = "cartValueBuckets";
+
+	private @Id long lowerBoundMinor;
+	private long carts;
+
+	private CartValueBucket() {
+	}
+
+	public long getLowerBoundMinor() {
+		return lowerBoundMinor;
+	}
+
+	public long getCarts() {
+		return carts;
+	}
+
+	@Override
+	public String toString() {
+		return "CartValueBucket{" + "lowerBoundMinor=" + lowerBoundMinor + ", carts=" + carts + '}';
+	}
+}
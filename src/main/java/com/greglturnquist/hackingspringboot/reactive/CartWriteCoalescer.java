@@ -0,0 +1,193 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiFunction;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+import reactor.core.publisher.MonoSink;
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+/**
+ * Merges quantity changes to the same cart that arrive within a short window into a single
+ * write. The first operation for a cart opens a mailbox and schedules its flush; operations
+ * arriving before the flush join the mailbox, and every caller is completed with the cart
+ * produced by the one combined write. A caller never waits more than the window on top of
+ * the write itself.
+ *
+ * Mailboxes are published through a {@link ConcurrentMap} and filled without locks; a
+ * mailbox is sealed before it is drained, and a caller that finds it sealed opens a new one.
+ */
+class CartWriteCoalescer {
+
+	private final ConcurrentMap<String, Mailbox> mailboxes = new ConcurrentHashMap<>();
+
+	private final Duration window;
+
+	private final BiFunction<String, List<CartOperation>, Mono<Cart>> writer;
+
+	private final Scheduler scheduler = Schedulers.parallel();
+
+	private final Counter operations;
+
+	private final Counter writes;
+
+	private final DistributionSummary batchSize;
+
+	CartWriteCoalescer(Duration window, BiFunction<String, List<CartOperation>, Mono<Cart>> writer,
+			MeterRegistry meterRegistry) {
+		this.window = window;
+		this.writer = writer;
+		this.operations = Counter.builder("cart.coalescer.operations")
+				.description("Cart operations submitted for coalescing")
+				.register(meterRegistry);
+		this.writes = Counter.builder("cart.coalescer.writes")
+				.description("Cart writes issued after coalescing")
+				.register(meterRegistry);
+		this.batchSize = DistributionSummary.builder("cart.coalescer.batch.size")
+				.description("Operations merged into each cart write")
+				.register(meterRegistry);
+	}
+
+	Mono<Cart> submit(String cartId, CartOperation operation) {
+		if (this.window.isZero()) {
+			return this.writer.apply(cartId, Collections.singletonList(operation));
+		}
+		return Mono.create(sink -> {
+			this.operations.increment();
+			enqueue(cartId, new Pending(operation, sink));
+		});
+	}
+
+	private void enqueue(String cartId, Pending pending) {
+		for (;;) {
+			Mailbox mailbox = this.mailboxes.get(cartId);
+
+			if (mailbox == null) {
+				Mailbox fresh = new Mailbox(cartId);
+				fresh.offer(pending);
+				if (this.mailboxes.putIfAbsent(cartId, fresh) == null) {
+					this.scheduler.schedule(() -> flush(fresh), this.window.toNanos(), TimeUnit.NANOSECONDS);
+					return;
+				}
+				continue;
+			}
+
+			if (mailbox.offer(pending)) {
+				return;
+			}
+
+			// Sealed and being flushed; make room for the next one.
+			this.mailboxes.remove(cartId, mailbox);
+		}
+	}
+
+	private void flush(Mailbox mailbox) {
+		this.mailboxes.remove(mailbox.cartId, mailbox);
+		List<Pending> drained = mailbox.sealAndDrain();
+
+		List<CartOperation> batch = new ArrayList<>(drained.size());
+		drained.forEach(pending -> batch.add(pending.operation));
+
+		this.writes.increment();
+		this.batchSize.record(batch.size());
+
+		// The write runs in the context of the first caller, so it shows up in that caller's trace.
+		// Deferred, so that a writer throwing instead of signalling an error still fails every caller.
+		Mono.defer(() -> this.writer.apply(mailbox.cartId, batch))
+				.subscriberContext(drained.get(0).sink.currentContext())
+				.subscribe( //
+						cart -> drained.forEach(pending -> pending.sink.success(cart)), //
+						error -> drained.forEach(pending -> pending.sink.error(error)), //
+						() -> drained.forEach(pending -> pending.sink.success()));
+	}
+
+	private static final class Pending {
+
+		private final CartOperation operation;
+
+		private final MonoSink<Cart> sink;
+
+		private Pending(CartOperation operation, MonoSink<Cart> sink) {
+			this.operation = operation;
+			this.sink = sink;
+		}
+	}
+
+	private static final class Mailbox {
+
+		private static final int SEALED = Integer.MIN_VALUE;
+
+		private final String cartId;
+
+		private final Queue<Pending> queue = new ConcurrentLinkedQueue<>();
+
+		/**
+		 * Sign bit: sealed. Remaining bits: callers currently offering.
+		 */
+		private final AtomicInteger state = new AtomicInteger();
+
+		private Mailbox(String cartId) {
+			this.cartId = cartId;
+		}
+
+		boolean offer(Pending pending) {
+			for (;;) {
+				int current = this.state.get();
+				if (current < 0) {
+					return false;
+				}
+				if (this.state.compareAndSet(current, current + 1)) {
+					break;
+				}
+			}
+			this.queue.offer(pending);
+			this.state.decrementAndGet();
+			return true;
+		}
+
+		List<Pending> sealAndDrain() {
+			int current;
+			do {
+				current = this.state.get();
+			} while (!this.state.compareAndSet(current, current | SEALED));
+
+			// Wait out callers that got in before the seal; they are only between two queue operations.
+			while ((this.state.get() & ~SEALED) != 0) {
+				Thread.yield();
+			}
+
+			List<Pending> drained = new ArrayList<>(this.queue);
+			this.queue.clear();
+			return drained;
+		}
+	}
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Instant;
+import java.util.Date;
+
+import org.bson.Document;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * A persisted version of the catalog: a single counter document that every item write
+ * bumps once it succeeded. Cache validators for the item API are derived from it, so a
+ * conditional request is answered from one small read, before the catalog itself is
+ * queried, and the tags agree across nodes and restarts.
+ *
+ * It also remembers the latest change this node made or saw, which {@link ItemCatalog}
+ * uses to read from the primary until secondaries have caught up with it.
+ */
+@Component
+class CatalogVersion {
+
+	static final String COLLECTION = "catalogVersion";
+
+	private static final String ID = "items";
+
+	private final ReactiveMongoTemplate primary;
+
+	private final MongoGuard guard;
+
+	private volatile Instant lastModified = Instant.EPOCH;
+
+	CatalogVersion(ReactiveMongoTemplate primary, MongoGuard guard) {
+		this.primary = primary;
+		this.guard = guard;
+	}
+
+	/**
+	 * The current version, read from the primary; version 0 until the catalog was first written.
+	 */
+	Mono<Version> current() {
+		return this.guard.mono(COLLECTION, "findById", this.primary.findById(ID, Document.class, COLLECTION))
+				.map(document -> new Version(document.get("number", Number.class).longValue(),
+						document.getDate("changedAt").toInstant()))
+				.defaultIfEmpty(new Version(0, Instant.EPOCH))
+				.doOnNext(version -> changedAt(version.getChangedAt()));
+	}
+
+	/**
+	 * Record that the catalog changed. Call it after the write, so that a tag never runs
+	 * ahead of the items it stands for.
+	 */
+	Mono<Void> changed() {
+		return Mono.defer(() -> {
+			changedAt(Instant.now());
+			return this.guard.mono(COLLECTION, "upsert", this.primary.upsert(selector(), bump(), COLLECTION));
+		}).then();
+	}
+
+	/**
+	 * The version document and the update that bumps it, for writers that use a blocking template.
+	 */
+	static Query selector() {
+		return query(where("_id").is(ID));
+	}
+
+	static Update bump() {
+		return new Update().inc("number", 1).set("changedAt", new Date());
+	}
+
+	/**
+	 * The latest catalog change this node made or read from the version document.
+	 */
+	Instant lastModified() {
+		return this.lastModified;
+	}
+
+	private synchronized void changedAt(Instant changedAt) {
+		if (changedAt.isAfter(this.lastModified)) {
+			this.lastModified = changedAt;
+		}
+	}
+
+	static class Version {
+
+		private final long number;
+
+		private final Instant changedAt;
+
+		Version(long number, Instant changedAt) {
+			this.number = number;
+			this.changedAt = changedAt;
+		}
+
+		long getNumber() {
+			return this.number;
+		}
+
+		Instant getChangedAt() {
+			return this.changedAt;
+		}
+
+		String catalogTag(boolean inventory) {
+			return "items-" + this.number + (inventory ? "-i" : "-u");
+		}
+
+		String itemTag(String id, boolean inventory) {
+			return "item-" + this.number + "-" + id + (inventory ? "-i" : "-u");
+		}
+	}
+}
@@ -30,8 +30,9 @@ public class DatabaseLoader {
 	@Bean
 	CommandLineRunner initialize(MongoOperations mongo) {
 		return args -> {
-			mongo.save(new Item("Alf alarm clock", "kids clock", 19.99));
-			mongo.save(new Item("Smurf TV tray", "kids TV tray", 24.99));
+			mongo.save(new Item("Alf alarm clock", "kids clock", 1999));
+			mongo.save(new Item("Smurf TV tray", "kids TV tray", 2499));
+			mongo.upsert(CatalogVersion.selector(), CatalogVersion.bump(), CatalogVersion.COLLECTION);
 		};
 	}
 }
@@ -0,0 +1,116 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.util.Collections;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnClass;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.data.mongo.MongoClientDependsOnBeanFactoryPostProcessor;
+import org.springframework.boot.autoconfigure.data.mongo.ReactiveStreamsMongoClientDependsOnBeanFactoryPostProcessor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import com.mongodb.MongoCommandException;
+import com.mongodb.client.MongoClient;
+import com.mongodb.client.MongoClients;
+import com.mongodb.client.MongoDatabase;
+
+import de.flapdoodle.embed.mongo.MongodExecutable;
+import de.flapdoodle.embed.mongo.config.IMongodConfig;
+
+/**
+ * Boot starts the embedded mongod with {@code spring.mongodb.embedded.storage.repl-set-name}
+ * but leaves the replica set uninitiated, and such a member serves neither reads nor
+ * writes. This initiates it as a single-node set and waits until it is primary, before
+ * any of the application's clients connect, so that read preferences and transactions
+ * behave as they do against a real replica set.
+ */
+@Configuration(proxyBeanMethods = false)
+@ConditionalOnClass(MongodExecutable.class)
+@ConditionalOnProperty("spring.mongodb.embedded.storage.repl-set-name")
+public class EmbeddedReplicaSetConfig {
+
+	/**
+	 * The code mongod answers {@code replSetInitiate} with when the set already exists.
+	 */
+	private static final int ALREADY_INITIALIZED = 23;
+
+	private static final Duration PRIMARY_TIMEOUT = Duration.ofSeconds(30);
+
+	@Bean
+	static MongoClientDependsOnBeanFactoryPostProcessor mongoClientAfterReplicaSet() {
+		return new MongoClientDependsOnBeanFactoryPostProcessor(EmbeddedReplicaSet.class);
+	}
+
+	@Bean
+	static ReactiveStreamsMongoClientDependsOnBeanFactoryPostProcessor reactiveMongoClientAfterReplicaSet() {
+		return new ReactiveStreamsMongoClientDependsOnBeanFactoryPostProcessor(EmbeddedReplicaSet.class);
+	}
+
+	@Bean
+	EmbeddedReplicaSet embeddedReplicaSet(MongodExecutable embeddedMongoServer, IMongodConfig config,
+			@Value("${spring.mongodb.embedded.storage.repl-set-name}") String replicaSet) throws InterruptedException {
+		String host = "localhost:" + config.net().getPort();
+		try (MongoClient client = MongoClients.create("mongodb://" + host)) {
+			MongoDatabase admin = client.getDatabase("admin");
+			try {
+				admin.runCommand(new Document("replSetInitiate", new Document("_id", replicaSet)
+						.append("members", Collections.singletonList(new Document("_id", 0).append("host", host)))));
+			} catch (MongoCommandException e) {
+				if (e.getErrorCode() != ALREADY_INITIALIZED) {
+					throw e;
+				}
+			}
+			long deadline = System.nanoTime() + PRIMARY_TIMEOUT.toNanos();
+			while (!Boolean.TRUE.equals(admin.runCommand(new Document("isMaster", 1)).getBoolean("ismaster"))) {
+				if (System.nanoTime() > deadline) {
+					throw new IllegalStateException("Embedded replica set " + replicaSet + " did not elect a primary within "
+							+ PRIMARY_TIMEOUT);
+				}
+				Thread.sleep(100);
+			}
+		}
+		return new EmbeddedReplicaSet(replicaSet, host);
+	}
+
+	/**
+	 * Marks the embedded replica set as initiated, for the Mongo clients to depend on.
+	 */
+	static final class EmbeddedReplicaSet {
+
+		private final String name;
+
+		private final String host;
+
+		private EmbeddedReplicaSet(String name, String host) {
+			this.name = name;
+			this.host = host;
+		}
+
+		String name() {
+			return this.name;
+		}
+
+		String host() {
+			return this.host;
+		}
+	}
+}
@@ -6,9 +6,11 @@ import static org.springframework.hateoas.config.EnableHypermediaSupport.Hyperme
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
 import org.springframework.hateoas.config.EnableHypermediaSupport;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
 @EnableHypermediaSupport(type = { HAL, HAL_FORMS })
+@EnableScheduling
 public class HackingSpringBootApplication {
 
 	public static void main(String[] args) {
@@ -15,6 +15,10 @@
  */
 package com.greglturnquist.hackingspringboot.reactive;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+
+import org.springframework.util.DigestUtils;
 import org.springframework.web.bind.annotation.DeleteMapping;
 import reactor.core.publisher.Mono;
 
@@ -29,15 +33,32 @@ import org.springframework.web.reactive.result.view.Rendering;
 @Controller
 public class HomeController {
 
+	/**
+	 * Carts used to be keyed by their owner's name followed by this suffix.
+	 */
+	static final String LEGACY_CART_SUFFIX = "'s Cart";
+
 	private final InventoryService inventoryService;
 
+	private final Tracing tracing;
 
-	private static String cartName(Authentication auth) {
-		return auth.getName() + "'s Cart";
+
+	static String cartName(Authentication auth) {
+		return cartName(auth.getName());
+	}
+
+	/**
+	 * Carts are keyed by a hash of their owner's name: stable, compact and evenly
+	 * distributed, so the id can serve as the shard key.
+	 */
+	static String cartName(String username) {
+		byte[] digest = DigestUtils.md5Digest(username.getBytes(StandardCharsets.UTF_8));
+		return Base64.getUrlEncoder().withoutPadding().encodeToString(digest);
 	}
 	
-	public HomeController(InventoryService inventoryService) {
+	public HomeController(InventoryService inventoryService, Tracing tracing) {
 		this.inventoryService = inventoryService;
+		this.tracing = tracing;
 	}
 
 	@GetMapping
@@ -52,14 +73,14 @@ public class HomeController {
 
 	@PostMapping("/cart/item/add/{id}")
 	Mono<String> addToCart(Authentication auth, @PathVariable String id) {
-		return this.inventoryService.addItemToCart(cartName(auth), id)
-			.thenReturn("redirect:/");
+		return this.tracing.mono("HomeController.addToCart", this.inventoryService.addItemToCart(cartName(auth), id)
+			.thenReturn("redirect:/"));
 	}
 
 	@DeleteMapping("/cart/item/remove/{id}")
 	Mono<String> removeFromCart(Authentication auth, @PathVariable String id) {
-		return this.inventoryService.removeOneFromCart(cartName(auth), id)
-			.thenReturn("redirect:/");
+		return this.tracing.mono("HomeController.removeFromCart", this.inventoryService.removeOneFromCart(cartName(auth), id)
+			.thenReturn("redirect:/"));
 	}
 
 	@PostMapping("/item")
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.scheduling.annotation.Scheduled;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Token buckets held in this node's memory. Each bucket is a single {@link AtomicLong}
+ * holding the time at which it will be full again (the GCRA formulation of a token
+ * bucket), so taking a token is one compare-and-set and allocates nothing. Buckets are
+ * spread over a {@link ConcurrentHashMap}, and full ones are evicted periodically.
+ */
+class InMemoryRateLimitStore implements RateLimitStore {
+
+	private final ConcurrentMap<String, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+	private final long intervalNanos;
+
+	private final long capacityNanos;
+
+	InMemoryRateLimitStore(double requestsPerSecond, int burst) {
+		this.intervalNanos = (long) (TimeUnit.SECONDS.toNanos(1) / requestsPerSecond);
+		this.capacityNanos = this.intervalNanos * burst;
+	}
+
+	@Override
+	public Mono<Duration> tryConsume(String key) {
+		return Mono.just(consume(key));
+	}
+
+	Duration consume(String key) {
+		long now = System.nanoTime();
+		AtomicLong bucket = this.buckets.computeIfAbsent(key, k -> new AtomicLong(now));
+
+		for (;;) {
+			long fullAt = bucket.get();
+			long next = Math.max(fullAt, now) + this.intervalNanos;
+			long excess = next - now - this.capacityNanos;
+			if (excess > 0) {
+				return Duration.ofNanos(excess);
+			}
+			if (bucket.compareAndSet(fullAt, next)) {
+				return Duration.ZERO;
+			}
+		}
+	}
+
+	@Scheduled(fixedDelay = 60_000)
+	void evictFullBuckets() {
+		long now = System.nanoTime();
+		this.buckets.forEach((key, bucket) -> {
+			if (bucket.get() - now <= 0) {
+				this.buckets.remove(key, bucket);
+			}
+		});
+	}
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.bson.BsonDocument;
+import org.bson.BsonValue;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.core.ChangeStreamEvent;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.data.mongodb.core.mapping.event.AbstractMongoEventListener;
+import org.springframework.data.mongodb.core.mapping.event.AfterDeleteEvent;
+import org.springframework.data.mongodb.core.mapping.event.AfterSaveEvent;
+import org.springframework.data.mongodb.core.mapping.event.BeforeConvertEvent;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.BufferOverflowStrategy;
+import reactor.core.publisher.DirectProcessor;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.FluxSink;
+import reactor.util.retry.Retry;
+
+/**
+ * Single source of catalog change events, shared by every subscriber of the event feed.
+ *
+ * By default ({@code inventory.events.source=change-stream}) the events come from one Mongo
+ * change stream on the {@link Item} collection, opened for the first subscriber and closed
+ * after the last one leaves, so they cover the writes of every node; it requires a replica
+ * set. With {@code local}, the mapping events of this node's own writes are published instead.
+ *
+ * Each subscriber reads through its own bounded buffer that drops the oldest events when
+ * it falls behind, so a slow client can neither stall the others nor grow without bound.
+ */
+@Component
+class InventoryEvents extends AbstractMongoEventListener<Item> {
+
+	private final DirectProcessor<ItemEvent> localEvents = DirectProcessor.create();
+
+	private final FluxSink<ItemEvent> localSink = this.localEvents.sink();
+
+	private final Set<Item> inserting = Collections.synchronizedSet(Collections.newSetFromMap(new IdentityHashMap<>()));
+
+	private final boolean changeStream;
+
+	private final int bufferSize;
+
+	private final Flux<ItemEvent> shared;
+
+	private final Counter dropped;
+
+	InventoryEvents(ReactiveMongoTemplate template, //
+			@Value("${inventory.events.source:change-stream}") String source, //
+			@Value("${inventory.events.buffer-size:256}") int bufferSize, //
+			MeterRegistry meterRegistry) {
+		this.changeStream = "change-stream".equals(source);
+		this.bufferSize = bufferSize;
+		this.shared = (this.changeStream ? changeStream(template) : this.localEvents).share();
+		this.dropped = Counter.builder("inventory.events.dropped")
+				.description("Inventory events dropped for subscribers that fell behind")
+				.register(meterRegistry);
+	}
+
+	Flux<ItemEvent> events() {
+		return this.shared.onBackpressureBuffer(this.bufferSize, event -> this.dropped.increment(),
+				BufferOverflowStrategy.DROP_OLDEST);
+	}
+
+	private static Flux<ItemEvent> changeStream(ReactiveMongoTemplate template) {
+		AtomicReference<BsonValue> resumeToken = new AtomicReference<>();
+
+		return Flux.defer(() -> template.changeStream(Item.class)
+				.withOptions(options -> {
+					options.returnFullDocumentOnUpdate();
+					if (resumeToken.get() != null) {
+						options.resumeAfter(resumeToken.get());
+					}
+				})
+				.listen())
+			.doOnNext(event -> resumeToken.set(event.getResumeToken()))
+			.map(InventoryEvents::toItemEvent)
+			.filter(event -> event.getType() != null)
+			// Pick up where we left off if the cursor is lost, e.g. on a primary step-down.
+			.retryWhen(Retry.backoff(Long.MAX_VALUE, Duration.ofSeconds(1)).maxBackoff(Duration.ofSeconds(30)));
+	}
+
+	private static ItemEvent toItemEvent(ChangeStreamEvent<Item> event) {
+		BsonDocument key = event.getRaw().getDocumentKey();
+		String id = key == null ? null : idOf(key.get("_id"));
+
+		switch (event.getOperationType()) {
+			case INSERT:
+				return new ItemEvent(ItemEvent.Type.CREATED, id, event.getBody());
+			case UPDATE:
+			case REPLACE:
+				return new ItemEvent(ItemEvent.Type.UPDATED, id, event.getBody());
+			case DELETE:
+				return new ItemEvent(ItemEvent.Type.DELETED, id, null);
+			default:
+				return new ItemEvent(null, id, null);
+		}
+	}
+
+	private static String idOf(BsonValue id) {
+		if (id == null) {
+			return null;
+		}
+		if (id.isObjectId()) {
+			return id.asObjectId().getValue().toHexString();
+		}
+		return id.isString() ? id.asString().getValue() : id.toString();
+	}
+
+	@Override
+	public void onBeforeConvert(BeforeConvertEvent<Item> event) {
+		if (!this.changeStream && event.getSource().getId() == null) {
+			this.inserting.add(event.getSource());
+		}
+	}
+
+	/**
+	 * Forget an item once its save completed, failed or was cancelled, so a failed insert
+	 * doesn't stay behind in the set of pending ones.
+	 */
+	void saveEnded(Item item) {
+		this.inserting.remove(item);
+	}
+
+	@Override
+	public void onAfterSave(AfterSaveEvent<Item> event) {
+		if (this.changeStream) {
+			return;
+		}
+		Item item = event.getSource();
+		ItemEvent.Type type = this.inserting.remove(item) ? ItemEvent.Type.CREATED : ItemEvent.Type.UPDATED;
+		this.localSink.next(new ItemEvent(type, item.getId(), item));
+	}
+
+	@Override
+	public void onAfterDelete(AfterDeleteEvent<Item> event) {
+		if (this.changeStream) {
+			return;
+		}
+		Object id = event.getSource().get("_id");
+		if (id != null && !(id instanceof Document)) {
+			this.localSink.next(new ItemEvent(ItemEvent.Type.DELETED, id.toString(), null));
+		}
+	}
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static com.greglturnquist.hackingspringboot.reactive.HomeController.cartName;
+
+import org.springframework.messaging.handler.annotation.MessageMapping;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Controller;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * RSocket routes for internal services. Callers authenticate once per connection with
+ * simple authentication metadata, and cart routes act on that user's cart.
+ *
+ * <ul>
+ * <li>{@code items.get} (request-response): one item by id</li>
+ * <li>{@code items.all} (request-stream): the catalog, paced by the requester's demand</li>
+ * <li>{@code cart.get} / {@code cart.add} (request-response): read the cart, add one item</li>
+ * <li>{@code cart.increment} (fire-and-forget): apply a {@link CartOperation}</li>
+ * </ul>
+ */
+@Controller
+public class InventoryRSocketController {
+
+	private final InventoryService inventoryService;
+
+	public InventoryRSocketController(InventoryService inventoryService) {
+		this.inventoryService = inventoryService;
+	}
+
+	@MessageMapping("items.get")
+	Mono<Item> getItem(String id) {
+		return this.inventoryService.getItem(id);
+	}
+
+	@MessageMapping("items.all")
+	Flux<Item> items() {
+		return this.inventoryService.getInventory();
+	}
+
+	@MessageMapping("cart.get")
+	Mono<Cart> cart(@AuthenticationPrincipal UserDetails user) {
+		return this.inventoryService.getCart(cartName(user.getUsername()))
+				.defaultIfEmpty(new Cart(cartName(user.getUsername())));
+	}
+
+	@MessageMapping("cart.add")
+	Mono<Cart> addToCart(String itemId, @AuthenticationPrincipal UserDetails user) {
+		return this.inventoryService.addItemToCart(cartName(user.getUsername()), itemId);
+	}
+
+	@MessageMapping("cart.increment")
+	Mono<Void> increment(CartOperation operation, @AuthenticationPrincipal UserDetails user) {
+		return this.inventoryService.applyCartOperation(cartName(user.getUsername()), operation).then();
+	}
+}
@@ -16,76 +16,373 @@
 
 package com.greglturnquist.hackingspringboot.reactive;
 
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.stream.Collectors;
 
+import io.micrometer.core.instrument.MeterRegistry;
 import reactor.core.publisher.Flux;
 import reactor.core.publisher.Mono;
+import reactor.util.retry.Retry;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Query;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.reactive.TransactionalOperator;
+
+import com.mongodb.MongoException;
 
 @Service
 class InventoryService {
 
+	private static final int MAX_WRITE_ATTEMPTS = 5;
+
+	private static final String ITEMS = "item";
+
+	private static final String CARTS = "cart";
+
 	private ItemRepository itemRepository;
 
-	private CartRepository cartRepository;
+	private CartRouter cartRouter;
+
+	private CartWriteCoalescer coalescer;
+
+	private ItemCatalog catalog;
+
+	private CatalogVersion catalogVersion;
+
+	private InventoryEvents events;
+
+	private MongoGuard guard;
+
+	private StockLevels stock;
+
+	private Tracing tracing;
+
+	private CartAnalytics analytics;
+
+	private final int maxQuantity;
+
+	/**
+	 * Collections can't be created inside a transaction, so checkout first makes sure the
+	 * ones it writes to exist, along with their indexes.
+	 */
+	private final Mono<Void> orderCollections;
+
+	/**
+	 * Last catalog read successfully, served when Mongo is unavailable.
+	 */
+	private final AtomicReference<List<Item>> lastKnownCatalog = new AtomicReference<>();
 
 	InventoryService(ItemRepository repository,
-					 CartRepository cartRepository) {
+					 CartRouter cartRouter,
+					 ItemCatalog catalog,
+					 CatalogVersion catalogVersion,
+					 InventoryEvents events,
+					 MongoGuard guard,
+					 StockLevels stock,
+					 Tracing tracing,
+					 CartAnalytics analytics,
+					 @Value("${cart.coalescing.window:5ms}") Duration coalescingWindow,
+					 @Value("${cart.max-quantity:1000}") int maxQuantity,
+					 MeterRegistry meterRegistry) {
 		this.itemRepository = repository;
-		this.cartRepository = cartRepository;
+		this.cartRouter = cartRouter;
+		this.catalog = catalog;
+		this.catalogVersion = catalogVersion;
+		this.events = events;
+		this.guard = guard;
+		this.stock = stock;
+		this.tracing = tracing;
+		this.analytics = analytics;
+		this.maxQuantity = maxQuantity;
+		this.orderCollections = MongoGuard.cacheSuccess(Flux.fromIterable(cartRouter.shards())
+			.concatMap(shard -> shard.indexOps(Order.class).ensureIndex(new Index().on("cartId", Sort.Direction.ASC))
+				.then(shard.indexOps(OutboxEvent.class).ensureIndex(new Index().on("createdAt", Sort.Direction.ASC))))
+			.then());
+		this.coalescer = new CartWriteCoalescer(coalescingWindow, this::applyCartOperations, meterRegistry);
 	}
 
 	public Mono<Cart> getCart(String cartId) {
-		return this.cartRepository.findById(cartId);
+		return this.guard.mono(CARTS, "findById", this.cartRouter.route(cartId).findById(cartId, Cart.class));
 	}
 
+	/**
+	 * Read only the running totals of a cart, without its lines.
+	 */
+	public Mono<CartSummary> getCartSummary(String cartId) {
+		return this.guard.mono(CARTS, "findSummaryById", this.cartRouter.route(cartId)
+				.query(Cart.class)
+				.as(CartSummary.class)
+				.matching(query(where("id").is(cartId)))
+				.one());
+	}
+
+	/**
+	 * Stream the catalog, keeping a copy of it once it was read completely. If Mongo is
+	 * unavailable before the first item arrived, the last complete copy is served instead.
+	 */
 	public Flux<Item> getInventory() {
-		return this.itemRepository.findAll();
+		return Flux.defer(() -> {
+			List<Item> snapshot = new ArrayList<>();
+			return this.guard.flux(ITEMS, "findAll", this.catalog.findAll())
+				.doOnNext(snapshot::add)
+				.doOnComplete(() -> this.lastKnownCatalog.set(Collections.unmodifiableList(snapshot)))
+				.onErrorResume(e -> e instanceof MongoUnavailableException && snapshot.isEmpty(),
+					e -> lastKnownCatalog((MongoUnavailableException) e).flatMapIterable(items -> items));
+		});
+	}
+
+	public Mono<Item> getItem(String id) {
+		return this.guard.mono(ITEMS, "findById", this.catalog.findById(id))
+			.onErrorResume(MongoUnavailableException.class, e -> lastKnownCatalog(e)
+				.flatMap(items -> Mono.justOrEmpty(items.stream()
+					.filter(item -> item.getId().equals(id))
+					.findAny())));
+	}
+
+	private Mono<List<Item>> lastKnownCatalog(MongoUnavailableException e) {
+		List<Item> catalog = this.lastKnownCatalog.get();
+		return catalog == null ? Mono.error(e) : Mono.just(catalog);
 	}
 
 	Mono<Item> saveItem(Item newItem) {
-		return this.itemRepository.save(newItem);
+		return this.guard.mono(ITEMS, "save", this.itemRepository.save(newItem)
+				.doFinally(signal -> this.events.saveEnded(newItem)))
+			.flatMap(saved -> this.catalogVersion.changed().thenReturn(saved));
 	}
 
 	Mono<Void> deleteItem(String id) {
-		return this.itemRepository.deleteById(id);
+		return this.guard.mono(ITEMS, "deleteById", this.itemRepository.deleteById(id))
+			.then(this.catalogVersion.changed())
+			.then(this.stock.removeStock(id));
+	}
+
+	Mono<Void> setStock(String itemId, long available) {
+		return this.stock.setStock(itemId, available);
+	}
+
+	Mono<Long> getStock(String itemId) {
+		return this.stock.available(itemId);
 	}
 
 	Mono<Cart> addItemToCart(String cartId, String itemId) {
-		return this.cartRepository.findById(cartId)
-			.defaultIfEmpty(new Cart(cartId)) //
-			.flatMap(cart -> cart.getCartItems().stream()
-				.filter(cartItem -> cartItem.getItem().getId().equals(itemId))
-				.findAny() //
-				.map(cartItem -> {
-					cartItem.increment();
-					return Mono.just(cart);
-				}) //
-				.orElseGet(() -> {
-					return this.itemRepository.findById(itemId) //
-						.map(item -> new CartItem(item)) //
-						.map(cartItem -> {
-							cart.getCartItems().add(cartItem);
-							return cart;
-						});
-				}))
-			.flatMap(cart -> this.cartRepository.save(cart));
+		return this.tracing.mono("InventoryService.addItemToCart", this.coalescer.submit(cartId, new CartOperation(itemId, 1)));
 	}
 
 	Mono<Cart> removeOneFromCart(String cartId, String itemId) {
-		return this.cartRepository.findById(cartId)
-			.defaultIfEmpty(new Cart(cartId))
-			.flatMap(cart -> cart.getCartItems().stream()
-				.filter(cartItem -> cartItem.getItem().getId().equals(itemId))
-				.findAny()
-				.map(cartItem -> {
-					cartItem.decrement();
-					return Mono.just(cart);
-				}) //
-				.orElse(Mono.empty()))
-			.map(cart -> new Cart(cart.getId(), cart.getCartItems().stream()
-				.filter(cartItem -> cartItem.getQuantity() > 0)
-				.collect(Collectors.toList())))
-			.flatMap(cart -> this.cartRepository.save(cart));
+		return this.tracing.mono("InventoryService.removeOneFromCart", this.coalescer.submit(cartId, new CartOperation(itemId, -1)));
+	}
+
+	Mono<Cart> applyCartOperation(String cartId, CartOperation operation) {
+		// Checked before it is coalesced, so an invalid operation can't fail other callers' writes.
+		return this.tracing.mono("InventoryService.applyCartOperation", Mono.defer(() -> {
+			validate(operation);
+			return this.coalescer.submit(cartId, operation);
+		}));
+	}
+
+	/**
+	 * Apply a batch of quantity changes to a cart with one read and at most one write,
+	 * whatever the number of operations. Deltas for the same item are merged first.
+	 * The write is guarded by the cart's version, and a lost race against another writer
+	 * is retried from a fresh read.
+	 *
+	 * Stock for added units is reserved before the cart is written and handed back if the
+	 * write fails; stock for removed units is released once the write succeeded.
+	 *
+	 * Deltas, merged or not, and the resulting quantities are bounded by
+	 * {@code cart.max-quantity}; operations beyond it fail with
+	 * {@link InvalidCartOperationException}.
+	 */
+	Mono<Cart> applyCartOperations(String cartId, List<CartOperation> operations) {
+		return this.tracing.mono("InventoryService.applyCartOperations", Mono.defer(() -> {
+			Map<String, Integer> deltas = new LinkedHashMap<>();
+			for (CartOperation operation : operations) {
+				validate(operation);
+				// Both deltas are within the bound, so their sum can't overflow.
+				int delta = deltas.merge(operation.getItemId(), operation.getDelta(), Integer::sum);
+				checkQuantity(operation.getItemId(), delta);
+			}
+			return getCart(cartId)
+				.defaultIfEmpty(new Cart(cartId))
+				.flatMap(cart -> applyDeltas(cart, deltas));
+		})
+			.retryWhen(Retry.max(MAX_WRITE_ATTEMPTS)
+				.filter(e -> e instanceof OptimisticLockingFailureException || e instanceof DuplicateKeyException)));
+	}
+
+	private void validate(CartOperation operation) {
+		if (operation.getItemId() == null) {
+			throw new InvalidCartOperationException("A cart operation needs an itemId");
+		}
+		checkQuantity(operation.getItemId(), operation.getDelta());
+	}
+
+	private long checkQuantity(String itemId, long quantity) {
+		if (quantity > this.maxQuantity || quantity < -this.maxQuantity) {
+			throw new InvalidCartOperationException("Cannot change item " + itemId + " by or to " + quantity
+					+ ", the limit is " + this.maxQuantity);
+		}
+		return quantity;
+	}
+
+	private Mono<Cart> applyDeltas(Cart cart, Map<String, Integer> deltas) {
+		List<String> missing = deltas.entrySet().stream()
+			.filter(delta -> delta.getValue() > 0 && findCartItem(cart, delta.getKey()) == null)
+			.map(Map.Entry::getKey)
+			.collect(Collectors.toList());
+
+		Mono<Map<String, Item>> newItems = missing.isEmpty() //
+			? Mono.just(Collections.emptyMap()) //
+			: this.guard.flux(ITEMS, "findAllById", this.itemRepository.findAllById(missing)).collectMap(Item::getId);
+
+		return newItems.flatMap(items -> {
+			Map<String, Integer> reserved = new LinkedHashMap<>();
+			Map<String, Integer> released = new LinkedHashMap<>();
+			Map<String, Integer> releasedStock = new LinkedHashMap<>();
+			cart.recalculateTotalsIfMissing();
+			long totalBefore = cart.getTotalMinor();
+			int itemCountBefore = cart.getItemCount();
+
+			for (Map.Entry<String, Integer> delta : deltas.entrySet()) {
+				if (delta.getValue() == 0) {
+					continue;
+				}
+				CartItem cartItem = findCartItem(cart, delta.getKey());
+				if (cartItem != null) {
+					int quantity = (int) Math.max(checkQuantity(delta.getKey(),
+							(long) cartItem.getQuantity() + delta.getValue()), 0);
+					int change = quantity - cartItem.getQuantity();
+					cart.adjustTotals(cartItem.getItem(), change);
+					cartItem.setQuantity(quantity);
+					if (change > 0) {
+						reserved.put(delta.getKey(), change);
+					} else if (change < 0) {
+						released.put(delta.getKey(), -change);
+						int unreserved = Math.max(cartItem.getReserved() - quantity, 0);
+						if (unreserved > 0) {
+							cartItem.setReserved(cartItem.getReserved() - unreserved);
+							releasedStock.put(delta.getKey(), unreserved);
+						}
+					}
+				} else if (delta.getValue() > 0 && items.containsKey(delta.getKey())) {
+					CartItem newCartItem = new CartItem(items.get(delta.getKey()));
+					newCartItem.setQuantity(delta.getValue());
+					cart.getCartItems().add(newCartItem);
+					cart.adjustTotals(newCartItem.getItem(), delta.getValue());
+					reserved.put(delta.getKey(), delta.getValue());
+				}
+			}
+
+			if (reserved.isEmpty() && released.isEmpty()) {
+				return Mono.just(cart);
+			}
+
+			cart.getCartItems().removeIf(cartItem -> cartItem.getQuantity() <= 0);
+			Mono<Cart> write;
+			if (cart.getCartItems().isEmpty()) {
+				write = removeEmptyCart(cart);
+			} else {
+				cart.touch();
+				// Deferred, so the reservations recorded below are part of what is saved.
+				write = Mono.defer(() -> this.guard.mono(CARTS, "save", this.cartRouter.route(cart.getId()).save(cart)));
+			}
+
+			return this.stock.reserve(reserved)
+				.flatMap(taken -> {
+					taken.forEach((itemId, quantity) -> {
+						CartItem cartItem = findCartItem(cart, itemId);
+						cartItem.setReserved(cartItem.getReserved() + quantity);
+					});
+					return write.onErrorResume(e -> this.stock.release(taken).then(Mono.error(e)));
+				})
+				.flatMap(saved -> this.stock.release(releasedStock).thenReturn(saved))
+				.doOnNext(saved -> this.analytics.cartChanged(totalBefore, itemCountBefore, cart, reserved, released));
+		});
+	}
+
+	/**
+	 * Turn a cart into an {@link Order}. The order, its {@link OutboxEvent} and the removal
+	 * of the cart commit together in one transaction on the cart's shard, and the stock
+	 * reserved while shopping stays taken. An empty or missing cart yields nothing.
+	 */
+	Mono<Order> checkout(String cartId) {
+		ReactiveMongoOperations shard = this.cartRouter.route(cartId);
+		TransactionalOperator transaction = this.cartRouter.transactions(cartId);
+		Mono<Order> checkout = Mono.defer(() -> this.guard.mono(CARTS, "checkout", shard.findById(cartId, Cart.class)
+				.filter(cart -> !cart.getCartItems().isEmpty())
+				.flatMap(cart -> placeOrder(shard, cart))
+				.as(transaction::transactional)))
+			.retryWhen(Retry.max(MAX_WRITE_ATTEMPTS)
+				.filter(e -> e instanceof OptimisticLockingFailureException || isTransientTransactionError(e)))
+			.doOnNext(this.analytics::orderPlaced);
+		return this.tracing.mono("InventoryService.checkout", this.orderCollections.then(checkout));
+	}
+
+	private static Mono<Order> placeOrder(ReactiveMongoOperations shard, Cart cart) {
+		Order order = Order.from(cart);
+		Query unchanged = query(where("id").is(cart.getId()).and("version").is(cart.getVersion()));
+		return shard.insert(order)
+			.flatMap(placed -> shard.insert(OutboxEvent.orderPlaced(placed)))
+			.then(shard.remove(unchanged, Cart.class))
+			.flatMap(result -> result.getDeletedCount() == 0 //
+				? Mono.error(new OptimisticLockingFailureException("Cart " + cart.getId() + " was changed concurrently")) //
+				: Mono.just(order));
+	}
+
+	/**
+	 * Transactions that lost a write conflict are labelled by the server as safe to retry.
+	 */
+	private static boolean isTransientTransactionError(Throwable e) {
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof MongoException
+					&& ((MongoException) cause).hasErrorLabel(MongoException.TRANSIENT_TRANSACTION_ERROR_LABEL)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	Mono<Order> getOrder(String cartId, String orderId) {
+		return this.guard.mono(CARTS, "findOrder", this.cartRouter.route(cartId)
+			.findOne(query(where("id").is(orderId).and("cartId").is(cartId)), Order.class));
+	}
+
+	/**
+	 * Empty carts aren't kept: a stored one is deleted, guarded by its version like a save,
+	 * and one that was never stored stays that way.
+	 */
+	Mono<Cart> removeEmptyCart(Cart cart) {
+		if (cart.getVersion() == null) {
+			return Mono.just(cart);
+		}
+		Query stored = query(where("id").is(cart.getId()).and("version").is(cart.getVersion()));
+		return this.guard.mono(CARTS, "remove", this.cartRouter.route(cart.getId()).remove(stored, Cart.class))
+			.flatMap(result -> result.getDeletedCount() == 0 //
+				? Mono.error(new OptimisticLockingFailureException("Cart " + cart.getId() + " was changed concurrently")) //
+				: Mono.just(new Cart(cart.getId())));
+	}
+
+	private static CartItem findCartItem(Cart cart, String itemId) {
+		for (CartItem cartItem : cart.getCartItems()) {
+			if (cartItem.getItem().getId().equals(itemId)) {
+				return cartItem;
+			}
+		}
+		return null;
 	}
 }
@@ -16,9 +16,17 @@
 
 package com.greglturnquist.hackingspringboot.reactive;
 
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.Currency;
 import java.util.Objects;
 
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.PersistenceConstructor;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.fasterxml.jackson.annotation.JsonProperty;
 
 // tag::code[]
 public class Item {
@@ -26,23 +34,51 @@ public class Item {
     private @Id String id;
     private String name;
     private String description;
-    private double price;
+    private long priceMinor;
     // end::code[]
 
+    /**
+     * The one currency the whole catalog is priced in. Cart and order totals, the cart value
+     * buckets of {@link CartAnalytics} and the templates all add up minor units without
+     * converting, which is only sound while every price is in the same currency.
+     */
+    static final String CURRENCY = "USD";
+
+    private static final int FRACTION_DIGITS = Currency.getInstance(CURRENCY).getDefaultFractionDigits();
+
     private Item() {
     }
 
-    Item(String name, String description, double price) {
+    Item(String name, String description, long priceMinor) {
         this.name = name;
         this.description = description;
-        this.price = price;
+        this.priceMinor = priceMinor;
     }
 
-    Item(String id, String name, String description, double price) {
-        this(name, description, price);
+    Item(String id, String name, String description, long priceMinor) {
+        this(name, description, priceMinor);
         this.id = id;
     }
 
+    /**
+     * Items used to be stored with a floating point {@code price}; those documents are read
+     * by converting it to minor units, and are written back in the new form on their next save.
+     * A {@code currency} stored by earlier versions is ignored, see {@link #CURRENCY}.
+     */
+    @PersistenceConstructor
+    Item(String id, String name, String description, Long priceMinor, @Value("#root.price") Double price) {
+        this(id, name, description,
+                priceMinor != null ? priceMinor : price != null ? toMinorUnits(BigDecimal.valueOf(price)) : 0);
+    }
+
+    static long toMinorUnits(BigDecimal amount) {
+        return amount.movePointRight(FRACTION_DIGITS).setScale(0, RoundingMode.HALF_EVEN).longValueExact();
+    }
+
+    static BigDecimal fromMinorUnits(long minor) {
+        return BigDecimal.valueOf(minor, FRACTION_DIGITS);
+    }
+
     public String getId() {
         return id;
     }
@@ -67,12 +103,36 @@ public class Item {
         this.description = description;
     }
 
-    public double getPrice() {
-        return price;
+    /**
+     * Price in minor units of {@link #CURRENCY}, e.g. cents.
+     */
+    public long getPriceMinor() {
+        return priceMinor;
+    }
+
+    public void setPriceMinor(long priceMinor) {
+        this.priceMinor = priceMinor;
+    }
+
+    /**
+     * Always {@link #CURRENCY}; serialized so clients needn't assume it.
+     */
+    public String getCurrency() {
+        return CURRENCY;
+    }
+
+    /**
+     * The price as a decimal amount, for display and for clients and forms that still send
+     * a {@code price}; it is not part of the stored or serialized item.
+     */
+    @JsonIgnore
+    public BigDecimal getPrice() {
+        return fromMinorUnits(priceMinor);
     }
 
-    public void setPrice(double price) {
-        this.price = price;
+    @JsonProperty("price")
+    public void setPrice(BigDecimal price) {
+        this.priceMinor = toMinorUnits(price);
     }
 
     @Override
@@ -84,7 +144,7 @@ public class Item {
             return false;
         }
         Item item = (Item) o;
-        return Double.compare(item.price, price) == 0 &&
+        return priceMinor == item.priceMinor &&
             Objects.equals(id, item.id) &&
             Objects.equals(name, item.name) &&
             Objects.equals(description, item.description);
@@ -92,7 +152,7 @@ public class Item {
 
     @Override
     public int hashCode() {
-        return Objects.hash(id, name, description, price);
+        return Objects.hash(id, name, description, priceMinor);
     }
 
     @Override
@@ -101,7 +161,7 @@ public class Item {
             "id='" + id + '\'' +
             ", name='" + name + '\'' +
             ", description='" + description + '\'' +
-            ", price=" + price +
+            ", priceMinor=" + priceMinor +
             '}';
     }
 
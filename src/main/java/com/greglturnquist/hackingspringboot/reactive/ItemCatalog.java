@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.mongodb.ReactiveMongoDatabaseFactory;
+import org.springframework.data.mongodb.core.ReactiveMongoTemplate;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.ReadPreference;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Catalog reads, routed by {@code catalog.read-preference} (secondaries preferred by
+ * default) so browsing doesn't load the primary. Secondaries may lag by up to
+ * {@code catalog.max-staleness}, so for that long after a catalog change this node made or
+ * read from the {@link CatalogVersion}, reads go back to the primary: editors see their own
+ * writes, and a body read from a lagging secondary never goes out under a newer tag.
+ *
+ * Carts never come through here, they are always read from the primary.
+ */
+@Component
+class ItemCatalog {
+
+	/**
+	 * The smallest max staleness the drivers accept.
+	 */
+	static final Duration MIN_MAX_STALENESS = Duration.ofSeconds(90);
+
+	private final ReactiveMongoTemplate primary;
+
+	private final ReactiveMongoTemplate catalog;
+
+	private final CatalogVersion catalogVersion;
+
+	private final Duration maxStaleness;
+
+	ItemCatalog(ReactiveMongoTemplate primary, ReactiveMongoDatabaseFactory factory, CatalogVersion catalogVersion,
+			@Value("${catalog.read-preference:secondaryPreferred}") String readPreference,
+			@Value("${catalog.max-staleness:90s}") Duration maxStaleness) {
+		this.primary = primary;
+		// Only the routed reads need a template of their own; the primary one is the application's.
+		this.catalog = new ReactiveMongoTemplate(factory, primary.getConverter());
+		this.catalog.setReadPreference(readPreference(readPreference, maxStaleness));
+		this.catalogVersion = catalogVersion;
+		this.maxStaleness = maxStaleness;
+	}
+
+	static ReadPreference readPreference(String name, Duration maxStaleness) {
+		if ("primary".equalsIgnoreCase(name)) {
+			return ReadPreference.primary();
+		}
+		if (maxStaleness.compareTo(MIN_MAX_STALENESS) < 0) {
+			throw new IllegalArgumentException("catalog.max-staleness must be at least " + MIN_MAX_STALENESS
+					+ " but was " + maxStaleness);
+		}
+		return ReadPreference.valueOf(name, Collections.emptyList(), maxStaleness.getSeconds(), TimeUnit.SECONDS);
+	}
+
+	Flux<Item> findAll() {
+		return Flux.defer(() -> template().findAll(Item.class));
+	}
+
+	Mono<Item> findById(String id) {
+		return Mono.defer(() -> template().findById(id, Item.class));
+	}
+
+	private ReactiveMongoTemplate template() {
+		boolean recentlyChanged = this.catalogVersion.lastModified().plus(this.maxStaleness)
+				.isAfter(Instant.now());
+		return recentlyChanged ? this.primary : this.catalog;
+	}
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * Rollup of the demand for one item, maintained by {@link CartAnalytics}: the units
+ * currently sitting in carts, the units ever added to and removed from carts, and the units
+ * ordered.
+ */
+@Document(ItemDemand.COLLECTION)
+class ItemDemand {
+
+	static final String COLLECTION = "itemDemand";
+
+	private @Id String id;
+	private String name;
+	private long inCarts;
+	private long added;
+	private long removed;
+	private long ordered;
+
+	private ItemDemand() {
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getInCarts() {
+		return inCarts;
+	}
+
+	public long getAdded() {
+		return added;
+	}
+
+	public long getRemoved() {
+		return removed;
+	}
+
+	public long getOrdered() {
+		return ordered;
+	}
+
+	@Override
+	public String toString() {
+		return "ItemDemand{" + "id='" + id + '\'' + ", name='" + name + '\'' + ", inCarts=" + inCarts + ", added="
+				+ added + ", removed=" + removed + ", ordered=" + ordered + '}';
+	}
+}
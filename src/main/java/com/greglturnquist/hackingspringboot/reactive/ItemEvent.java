@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.Objects;
+
+import com.fasterxml.jackson.annotation.JsonInclude;
+
+/**
+ * A change to the catalog, as pushed to clients of the inventory event feed. Deletions only
+ * carry the id of the removed {@link Item}.
+ */
+@JsonInclude(JsonInclude.Include.NON_NULL)
+public class ItemEvent {
+
+	enum Type {
+		CREATED, UPDATED, DELETED
+	}
+
+	private final Type type;
+	private final String itemId;
+	private final Item item;
+
+	ItemEvent(Type type, String itemId, Item item) {
+		this.type = type;
+		this.itemId = itemId;
+		this.item = item;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public String getItemId() {
+		return itemId;
+	}
+
+	public Item getItem() {
+		return item;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o)
+			return true;
+		if (o == null || getClass() != o.getClass())
+			return false;
+		ItemEvent itemEvent = (ItemEvent) o;
+		return type == itemEvent.type && Objects.equals(itemId, itemEvent.itemId)
+				&& Objects.equals(item, itemEvent.item);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(type, itemId, item);
+	}
+
+	@Override
+	public String toString() {
+		return "ItemEvent{" + "type=" + type + ", itemId='" + itemId + '\'' + ", item=" + item + '}';
+	}
+}
@@ -0,0 +1,169 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.core.env.Environment;
+import org.springframework.dao.DataAccessResourceFailureException;
+import org.springframework.stereotype.Component;
+
+import com.mongodb.MongoSocketException;
+
+import io.github.resilience4j.bulkhead.Bulkhead;
+import io.github.resilience4j.bulkhead.BulkheadConfig;
+import io.github.resilience4j.bulkhead.BulkheadFullException;
+import io.github.resilience4j.bulkhead.BulkheadRegistry;
+import io.github.resilience4j.circuitbreaker.CallNotPermittedException;
+import io.github.resilience4j.circuitbreaker.CircuitBreaker;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerConfig;
+import io.github.resilience4j.circuitbreaker.CircuitBreakerRegistry;
+import io.github.resilience4j.micrometer.tagged.TaggedBulkheadMetrics;
+import io.github.resilience4j.micrometer.tagged.TaggedCircuitBreakerMetrics;
+import io.github.resilience4j.reactor.bulkhead.operator.BulkheadOperator;
+import io.github.resilience4j.reactor.circuitbreaker.operator.CircuitBreakerOperator;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Protects the application from a slow or failing database. Every guarded Mongo call gets
+ *
+ * <ul>
+ * <li>a timeout, {@code mongo.timeout.<repository>.<operation>} or else
+ * {@code mongo.timeout.default}. For a query returning many documents it bounds the wait
+ * for each one, so those also get a deadline for the whole result,
+ * {@code mongo.deadline.<repository>.<operation>} or else {@code mongo.deadline.default};</li>
+ * <li>a bulkhead per repository, refusing calls beyond
+ * {@code mongo.bulkhead.max-concurrent-calls} in flight instead of queueing them;</li>
+ * <li>a circuit breaker per repository that opens when too many calls fail or are slow,
+ * and then fails fast until Mongo recovers.</li>
+ * </ul>
+ *
+ * Calls refused or abandoned this way fail with {@link MongoUnavailableException}.
+ */
+@Component
+class MongoGuard {
+
+	private static final Duration DEFAULT_DEADLINE = Duration.ofSeconds(30);
+
+	private static final Duration FOREVER = Duration.ofMillis(Long.MAX_VALUE);
+
+	private final Environment environment;
+
+	private final Duration defaultTimeout;
+
+	private final Map<String, Duration> timeouts = new ConcurrentHashMap<>();
+
+	private final Map<String, Duration> deadlines = new ConcurrentHashMap<>();
+
+	private final BulkheadRegistry bulkheads;
+
+	private final CircuitBreakerRegistry circuitBreakers;
+
+	private final Tracing tracing;
+
+	MongoGuard(Environment environment, Tracing tracing, //
+			@Value("${mongo.timeout.default:2s}") Duration defaultTimeout, //
+			@Value("${mongo.bulkhead.max-concurrent-calls:64}") int maxConcurrentCalls, //
+			@Value("${mongo.circuit-breaker.failure-rate-threshold:50}") float failureRateThreshold, //
+			@Value("${mongo.circuit-breaker.slow-call-duration-threshold:1s}") Duration slowCallDuration, //
+			@Value("${mongo.circuit-breaker.wait-duration-in-open-state:10s}") Duration waitInOpenState, //
+			MeterRegistry meterRegistry) {
+		this.environment = environment;
+		this.tracing = tracing;
+		this.defaultTimeout = defaultTimeout;
+		this.bulkheads = BulkheadRegistry.of(BulkheadConfig.custom()
+				.maxConcurrentCalls(maxConcurrentCalls)
+				.maxWaitDuration(Duration.ZERO)
+				.build());
+		this.circuitBreakers = CircuitBreakerRegistry.of(CircuitBreakerConfig.custom()
+				.failureRateThreshold(failureRateThreshold)
+				.slowCallRateThreshold(failureRateThreshold)
+				.slowCallDurationThreshold(slowCallDuration)
+				.waitDurationInOpenState(waitInOpenState)
+				.recordException(MongoGuard::isDatabaseFailure)
+				.build());
+		TaggedBulkheadMetrics.ofBulkheadRegistry(this.bulkheads).bindTo(meterRegistry);
+		TaggedCircuitBreakerMetrics.ofCircuitBreakerRegistry(this.circuitBreakers).bindTo(meterRegistry);
+	}
+
+	<T> Mono<T> mono(String repository, String operation, Mono<T> call) {
+		return this.tracing.mono("mongo " + repository + "." + operation, call)
+				.timeout(timeout(repository, operation))
+				.transformDeferred(BulkheadOperator.of(bulkhead(repository)))
+				.transformDeferred(CircuitBreakerOperator.of(circuitBreaker(repository)))
+				.onErrorMap(MongoGuard::isProtective, e -> new MongoUnavailableException(repository + "." + operation, e));
+	}
+
+	<T> Flux<T> flux(String repository, String operation, Flux<T> call) {
+		Duration deadline = deadline(repository, operation);
+		return this.tracing.flux("mongo " + repository + "." + operation, call)
+				.timeout(timeout(repository, operation))
+				.takeUntilOther(Mono.delay(deadline)
+						.then(Mono.defer(() -> Mono.error(new TimeoutException("No result within " + deadline)))))
+				.transformDeferred(BulkheadOperator.of(bulkhead(repository)))
+				.transformDeferred(CircuitBreakerOperator.of(circuitBreaker(repository)))
+				.onErrorMap(MongoGuard::isProtective, e -> new MongoUnavailableException(repository + "." + operation, e));
+	}
+
+	/**
+	 * Cache the result of a one-time setup call, such as creating an index, once it has
+	 * succeeded. A failure isn't cached, so the next subscriber tries the call again rather
+	 * than having the failure replayed to it.
+	 */
+	static <T> Mono<T> cacheSuccess(Mono<T> setup) {
+		return setup.cache(value -> FOREVER, e -> Duration.ZERO, () -> FOREVER);
+	}
+
+	private Duration timeout(String repository, String operation) {
+		return this.timeouts.computeIfAbsent(repository + "." + operation, key -> this.environment
+				.getProperty("mongo.timeout." + key, Duration.class, this.defaultTimeout));
+	}
+
+	private Duration deadline(String repository, String operation) {
+		return this.deadlines.computeIfAbsent(repository + "." + operation, key -> this.environment
+				.getProperty("mongo.deadline." + key, Duration.class, this.environment
+						.getProperty("mongo.deadline.default", Duration.class, DEFAULT_DEADLINE)));
+	}
+
+	private Bulkhead bulkhead(String repository) {
+		return this.bulkheads.bulkhead(repository);
+	}
+
+	private CircuitBreaker circuitBreaker(String repository) {
+		return this.circuitBreakers.circuitBreaker(repository);
+	}
+
+	/**
+	 * Optimistic locking conflicts, duplicate keys and the like are answers from a healthy
+	 * database and must not open the circuit.
+	 */
+	private static boolean isDatabaseFailure(Throwable e) {
+		return e instanceof TimeoutException || e instanceof DataAccessResourceFailureException
+				|| e instanceof MongoSocketException;
+	}
+
+	private static boolean isProtective(Throwable e) {
+		return e instanceof TimeoutException || e instanceof BulkheadFullException
+				|| e instanceof CallNotPermittedException;
+	}
+}
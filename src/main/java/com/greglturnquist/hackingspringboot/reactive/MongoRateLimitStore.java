@@ -0,0 +1,79 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.springframework.data.mongodb.core.FindAndModifyOptions.options;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Duration;
+import java.util.Date;
+
+import org.bson.Document;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Update;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Request budgets shared by every node through Mongo, as one-second fixed windows: each
+ * request increments the counter of its client's current window with a single upsert, and
+ * a TTL index removes windows once they are over. Costs a round trip per request, so it is
+ * only worth it when several nodes serve the same clients.
+ */
+class MongoRateLimitStore implements RateLimitStore {
+
+	static final String COLLECTION = "rate_limits";
+
+	private static final String RATE_LIMITS = "rateLimit";
+
+	private static final long WINDOW_MILLIS = 1_000;
+
+	private final ReactiveMongoOperations operations;
+
+	private final MongoGuard guard;
+
+	private final long limit;
+
+	private final Mono<String> index;
+
+	MongoRateLimitStore(ReactiveMongoOperations operations, MongoGuard guard, double requestsPerSecond) {
+		this.operations = operations;
+		this.guard = guard;
+		this.limit = Math.max(1, Math.round(requestsPerSecond));
+		this.index = MongoGuard.cacheSuccess(guard.mono(RATE_LIMITS, "ensureIndex", operations.indexOps(COLLECTION)
+				.ensureIndex(new Index().on("expiresAt", Sort.Direction.ASC).expire(Duration.ZERO))));
+	}
+
+	@Override
+	public Mono<Duration> tryConsume(String key) {
+		long now = System.currentTimeMillis();
+		long window = now / WINDOW_MILLIS;
+		long windowEnd = (window + 1) * WINDOW_MILLIS;
+
+		return this.index.then(this.guard.mono(RATE_LIMITS, "findAndModify", this.operations.findAndModify( //
+				query(where("_id").is(key + ":" + window)), //
+				new Update().inc("count", 1).setOnInsert("expiresAt", new Date(windowEnd)), //
+				options().upsert(true).returnNew(true), //
+				Document.class, COLLECTION)))
+			.map(counter -> ((Number) counter.get("count")).longValue() <= this.limit //
+					? Duration.ZERO //
+					: Duration.ofMillis(windowEnd - now));
+	}
+}
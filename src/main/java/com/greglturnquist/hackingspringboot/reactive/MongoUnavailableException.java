@@ -0,0 +1,34 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * A Mongo operation was refused or abandoned to protect the application: it timed out, its
+ * repository's bulkhead was full, or its circuit breaker was open.
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+class MongoUnavailableException extends RuntimeException {
+
+	private static final long serialVersionUID = 1L;
+
+	MongoUnavailableException(String operation, Throwable cause) {
+		super("Mongo operation " + operation + " is unavailable: " + cause.getMessage(), cause);
+	}
+}
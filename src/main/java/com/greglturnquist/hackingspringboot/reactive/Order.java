@@ -0,0 +1,86 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Instant;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+import org.springframework.data.annotation.Id;
+
+/**
+ * A placed order. It copies the names and prices of the cart's items at checkout and never
+ * changes afterwards, so later catalog changes don't rewrite history.
+ */
+class Order {
+
+	private final @Id String id;
+	private final String cartId;
+	private final List<OrderLine> lines;
+	private final long totalMinor;
+	private final int itemCount;
+	private final Instant placedAt;
+
+	Order(String id, String cartId, List<OrderLine> lines, long totalMinor, int itemCount, Instant placedAt) {
+		this.id = id;
+		this.cartId = cartId;
+		this.lines = Collections.unmodifiableList(lines);
+		this.totalMinor = totalMinor;
+		this.itemCount = itemCount;
+		this.placedAt = placedAt;
+	}
+
+	static Order from(Cart cart) {
+		List<OrderLine> lines = cart.getCartItems().stream()
+				.map(cartItem -> new OrderLine(cartItem.getItem(), cartItem.getQuantity()))
+				.collect(Collectors.toList());
+		long totalMinor = lines.stream().mapToLong(line -> Math.multiplyExact(line.getPriceMinor(), line.getQuantity())).reduce(0, Math::addExact);
+		int itemCount = lines.stream().mapToInt(OrderLine::getQuantity).sum();
+		return new Order(UUID.randomUUID().toString(), cart.getId(), lines, totalMinor, itemCount, Instant.now());
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getCartId() {
+		return cartId;
+	}
+
+	public List<OrderLine> getLines() {
+		return lines;
+	}
+
+	public long getTotalMinor() {
+		return totalMinor;
+	}
+
+	public int getItemCount() {
+		return itemCount;
+	}
+
+	public Instant getPlacedAt() {
+		return placedAt;
+	}
+
+	@Override
+	public String toString() {
+		return "Order{" + "id='" + id + '\'' + ", cartId='" + cartId + '\'' + ", lines=" + lines + ", totalMinor="
+				+ totalMinor + ", itemCount=" + itemCount + ", placedAt=" + placedAt + '}';
+	}
+}
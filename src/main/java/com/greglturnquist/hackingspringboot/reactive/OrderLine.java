@@ -0,0 +1,60 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+/**
+ * One item of an {@link Order}, as it was sold.
+ */
+class OrderLine {
+
+	private final String itemId;
+	private final String name;
+	private final long priceMinor;
+	private final int quantity;
+
+	OrderLine(String itemId, String name, long priceMinor, int quantity) {
+		this.itemId = itemId;
+		this.name = name;
+		this.priceMinor = priceMinor;
+		this.quantity = quantity;
+	}
+
+	OrderLine(Item item, int quantity) {
+		this(item.getId(), item.getName(), item.getPriceMinor(), quantity);
+	}
+
+	public String getItemId() {
+		return itemId;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getPriceMinor() {
+		return priceMinor;
+	}
+
+	public int getQuantity() {
+		return quantity;
+	}
+
+	@Override
+	public String toString() {
+		return "OrderLine{" + "itemId='" + itemId + '\'' + ", name='" + name + '\'' + ", priceMinor=" + priceMinor
+				+ ", quantity=" + quantity + '}';
+	}
+}
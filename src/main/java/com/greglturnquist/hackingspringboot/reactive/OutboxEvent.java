@@ -0,0 +1,94 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Instant;
+import java.util.UUID;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+/**
+ * An event written in the same transaction as the change it announces, and published
+ * afterwards by the {@link OutboxWorker}. {@code publishedAt} stays unset until then;
+ * while a worker is publishing it, {@code claimedBy} names that worker's batch until
+ * {@code claimedUntil}.
+ */
+@Document(OutboxEvent.COLLECTION)
+class OutboxEvent {
+
+	static final String COLLECTION = "outbox";
+
+	static final String ORDER_PLACED = "OrderPlaced";
+
+	private final @Id String id;
+	private final String type;
+	private final String aggregateId;
+	private final Order order;
+	private final Instant createdAt;
+	private final Instant publishedAt;
+	private final String claimedBy;
+	private final Instant claimedUntil;
+
+	OutboxEvent(String id, String type, String aggregateId, Order order, Instant createdAt, Instant publishedAt,
+			String claimedBy, Instant claimedUntil) {
+		this.id = id;
+		this.type = type;
+		this.aggregateId = aggregateId;
+		this.order = order;
+		this.createdAt = createdAt;
+		this.publishedAt = publishedAt;
+		this.claimedBy = claimedBy;
+		this.claimedUntil = claimedUntil;
+	}
+
+	static OutboxEvent orderPlaced(Order order) {
+		return new OutboxEvent(UUID.randomUUID().toString(), ORDER_PLACED, order.getId(), order, order.getPlacedAt(),
+				null, null, null);
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getType() {
+		return type;
+	}
+
+	public String getAggregateId() {
+		return aggregateId;
+	}
+
+	public Order getOrder() {
+		return order;
+	}
+
+	public Instant getCreatedAt() {
+		return createdAt;
+	}
+
+	public Instant getPublishedAt() {
+		return publishedAt;
+	}
+
+	public String getClaimedBy() {
+		return claimedBy;
+	}
+
+	public Instant getClaimedUntil() {
+		return claimedUntil;
+	}
+}
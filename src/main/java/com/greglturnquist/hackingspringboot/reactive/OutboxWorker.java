@@ -0,0 +1,177 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.ApplicationEventPublisher;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Publishes the {@link OutboxEvent}s of every cart shard as application events, oldest
+ * first, up to {@code outbox.batch-size} per round trip, and marks each batch published with
+ * a single update. Checkout only writes to the outbox, so its latency doesn't depend on how
+ * fast events are consumed.
+ *
+ * Each batch is claimed before it is published: one update stamps the candidates with a
+ * claim of its own, guarded so it only takes events nobody else holds, and only events
+ * carrying that claim are published. Several nodes can so drain the same shard without
+ * publishing an event twice. A claim lapses after {@code outbox.claim-timeout}, so events
+ * of a node that stops between claiming and marking are published again by another;
+ * delivery is at least once. Published events are removed after {@code outbox.retention}.
+ *
+ * The worker polls every {@code outbox.poll-interval} on its own timer rather than on the
+ * shared task scheduler, which it would otherwise block while waiting on Mongo. A failed
+ * poll, including creating the indexes, is counted in {@code outbox.drains.failed} and
+ * tried again on the next tick.
+ */
+@Component
+class OutboxWorker implements SmartLifecycle {
+
+	private final CartRouter router;
+
+	private final ApplicationEventPublisher publisher;
+
+	private final int batchSize;
+
+	private final Duration pollInterval;
+
+	private final Duration claimTimeout;
+
+	private final Mono<Void> indexes;
+
+	private final Counter published;
+
+	private final Counter failedDrains;
+
+	private volatile Disposable polling;
+
+	OutboxWorker(CartRouter router, ApplicationEventPublisher publisher,
+			@Value("${outbox.batch-size:100}") int batchSize,
+			@Value("${outbox.poll-interval:PT1S}") Duration pollInterval,
+			@Value("${outbox.claim-timeout:PT1M}") Duration claimTimeout,
+			@Value("${outbox.retention:7d}") Duration retention,
+			MeterRegistry meterRegistry) {
+		this.router = router;
+		this.publisher = publisher;
+		this.batchSize = batchSize;
+		this.pollInterval = pollInterval;
+		this.claimTimeout = claimTimeout;
+		Mono<Void> indexes = Flux.fromIterable(router.shards())
+				.concatMap(shard -> shard.indexOps(OutboxEvent.class)
+						.ensureIndex(new Index().on("publishedAt", Sort.Direction.ASC).expire(retention)))
+				.then();
+		this.indexes = MongoGuard.cacheSuccess(indexes);
+		this.published = Counter.builder("outbox.events.published")
+				.description("Outbox events published to the application")
+				.register(meterRegistry);
+		this.failedDrains = Counter.builder("outbox.drains.failed")
+				.description("Outbox polls that failed and were left to the next one")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public void start() {
+		this.polling = Flux.interval(Duration.ZERO, this.pollInterval)
+				// A drain outlasting the interval skips ticks rather than queueing them.
+				.onBackpressureDrop()
+				.concatMap(tick -> drainAll()
+						// Whatever wasn't published is picked up by the next tick.
+						.onErrorResume(e -> {
+							this.failedDrains.increment();
+							return Mono.empty();
+						}), 1)
+				.subscribe();
+	}
+
+	@Override
+	public void stop() {
+		Disposable polling = this.polling;
+		if (polling != null) {
+			polling.dispose();
+		}
+	}
+
+	@Override
+	public boolean isRunning() {
+		Disposable polling = this.polling;
+		return polling != null && !polling.isDisposed();
+	}
+
+	Mono<Void> drainAll() {
+		return this.indexes.thenMany(Flux.fromIterable(this.router.shards()))
+				.concatMap(this::drain)
+				.then();
+	}
+
+	/**
+	 * Keep publishing batches from a shard until fewer than a full batch are waiting.
+	 */
+	private Mono<Void> drain(ReactiveMongoOperations shard) {
+		return nextBatch(shard)
+				.expand(waiting -> waiting < this.batchSize ? Mono.empty() : nextBatch(shard))
+				.then();
+	}
+
+	/**
+	 * Claim, publish and mark a batch, yielding how many events were waiting: part of them
+	 * may have been claimed by another node in between.
+	 */
+	private Mono<Integer> nextBatch(ReactiveMongoOperations shard) {
+		return Mono.defer(() -> {
+			String claim = UUID.randomUUID().toString();
+			Instant now = Instant.now();
+			Criteria unclaimed = where("publishedAt").is(null)
+					.orOperator(where("claimedUntil").is(null), where("claimedUntil").lt(now));
+			return shard.find(query(unclaimed).with(Sort.by("createdAt")).limit(this.batchSize), OutboxEvent.class)
+					.map(OutboxEvent::getId)
+					.collectList()
+					.filter(ids -> !ids.isEmpty())
+					.flatMap(ids -> shard.updateMulti(query(where("id").in(ids).andOperator(unclaimed)),
+							new Update().set("claimedBy", claim).set("claimedUntil", now.plus(this.claimTimeout)),
+							OutboxEvent.class)
+							.thenMany(shard.find(query(where("claimedBy").is(claim)).with(Sort.by("createdAt")),
+									OutboxEvent.class))
+							.collectList()
+							.flatMap(batch -> {
+								batch.forEach(this.publisher::publishEvent);
+								return shard.updateMulti(query(where("claimedBy").is(claim)),
+										new Update().set("publishedAt", Instant.now()).unset("claimedUntil"),
+										OutboxEvent.class)
+										.doOnNext(result -> this.published.increment(batch.size()));
+							})
+							.thenReturn(ids.size()));
+		});
+	}
+}
@@ -0,0 +1,37 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.messaging.rsocket.RSocketStrategies;
+import org.springframework.messaging.rsocket.annotation.support.RSocketMessageHandler;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.config.Customizer;
+import org.springframework.security.config.annotation.rsocket.EnableRSocketSecurity;
+import org.springframework.security.config.annotation.rsocket.RSocketSecurity;
+import org.springframework.security.messaging.handler.invocation.reactive.AuthenticationPrincipalArgumentResolver;
+import org.springframework.security.rsocket.core.PayloadSocketAcceptorInterceptor;
+
+@Configuration
+@EnableRSocketSecurity
+public class RSocketSecurityConfig {
+
+	@Bean
+	PayloadSocketAcceptorInterceptor rsocketSecurityPolicy(RSocketSecurity rsocket,
+			ReactiveAuthenticationManager authenticationManager) {
+		return rsocket
+			.authenticationManager(authenticationManager)
+			.authorizePayload(payloads -> payloads
+				.anyRequest().authenticated()
+				.anyExchange().permitAll())
+			.simpleAuthentication(Customizer.withDefaults())
+			.build();
+	}
+
+	@Bean
+	RSocketMessageHandler messageHandler(RSocketStrategies strategies) {
+		RSocketMessageHandler handler = new RSocketMessageHandler();
+		handler.getArgumentResolverConfigurer().addCustomResolver(new AuthenticationPrincipalArgumentResolver());
+		handler.setRSocketStrategies(strategies);
+		return handler;
+	}
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.time.Duration;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Keeps the request budget of each client.
+ */
+interface RateLimitStore {
+
+	/**
+	 * Take one request from the budget of {@code key}.
+	 *
+	 * @return {@link Duration#ZERO} if the request is admitted, otherwise how long the client
+	 * should wait before trying again.
+	 */
+	Mono<Duration> tryConsume(String key);
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Admission control for the HTTP API: a global cap on requests in flight, and per-client
+ * token buckets kept either in memory ({@code rate-limit.store=memory}, the default) or in
+ * Mongo for limits shared across nodes ({@code rate-limit.store=mongo}). Each address has
+ * a bucket of its own ({@code rate-limit.address.*}) that is charged before authentication,
+ * and each principal one that is charged after it ({@code rate-limit.*}).
+ */
+@Configuration
+public class RateLimitingConfig {
+
+	static final String ADDRESS_STORE = "addressRateLimitStore";
+
+	@Bean
+	@Primary
+	@ConditionalOnProperty(name = "rate-limit.store", havingValue = "memory", matchIfMissing = true)
+	InMemoryRateLimitStore inMemoryRateLimitStore(
+			@Value("${rate-limit.requests-per-second:50}") double requestsPerSecond,
+			@Value("${rate-limit.burst:100}") int burst) {
+		return new InMemoryRateLimitStore(requestsPerSecond, burst);
+	}
+
+	@Bean(ADDRESS_STORE)
+	@ConditionalOnProperty(name = "rate-limit.store", havingValue = "memory", matchIfMissing = true)
+	InMemoryRateLimitStore inMemoryAddressRateLimitStore(
+			@Value("${rate-limit.address.requests-per-second:200}") double requestsPerSecond,
+			@Value("${rate-limit.address.burst:400}") int burst) {
+		return new InMemoryRateLimitStore(requestsPerSecond, burst);
+	}
+
+	@Bean
+	@Primary
+	@ConditionalOnProperty(name = "rate-limit.store", havingValue = "mongo")
+	MongoRateLimitStore mongoRateLimitStore(ReactiveMongoOperations operations, MongoGuard guard,
+			@Value("${rate-limit.requests-per-second:50}") double requestsPerSecond) {
+		return new MongoRateLimitStore(operations, guard, requestsPerSecond);
+	}
+
+	@Bean(ADDRESS_STORE)
+	@ConditionalOnProperty(name = "rate-limit.store", havingValue = "mongo")
+	MongoRateLimitStore mongoAddressRateLimitStore(ReactiveMongoOperations operations, MongoGuard guard,
+			@Value("${rate-limit.address.requests-per-second:200}") double requestsPerSecond) {
+		return new MongoRateLimitStore(operations, guard, requestsPerSecond);
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "rate-limit.enabled", havingValue = "true", matchIfMissing = true)
+	RateLimitingWebFilter addressRateLimitingWebFilter(@Qualifier(ADDRESS_STORE) RateLimitStore store,
+			MeterRegistry meterRegistry) {
+		return new RateLimitingWebFilter(store, true, meterRegistry);
+	}
+
+	@Bean
+	@ConditionalOnProperty(name = "rate-limit.enabled", havingValue = "true", matchIfMissing = true)
+	RateLimitingWebFilter rateLimitingWebFilter(RateLimitStore store, MeterRegistry meterRegistry) {
+		return new RateLimitingWebFilter(store, false, meterRegistry);
+	}
+
+	@Bean
+	AdmissionControlWebFilter admissionControlWebFilter(
+			@Value("${admission.max-concurrent-requests:1000}") int maxConcurrentRequests,
+			MeterRegistry meterRegistry) {
+		return new AdmissionControlWebFilter(maxConcurrentRequests, meterRegistry);
+	}
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.net.InetSocketAddress;
+import java.security.Principal;
+import java.time.Duration;
+
+import org.springframework.core.Ordered;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import reactor.core.publisher.Mono;
+
+/**
+ * Per-client rate limiting, in one of two places:
+ *
+ * <ul>
+ * <li>before the security filter chain, charging every request to its client's address, so
+ * that guessing passwords costs a budget before any credentials are checked;</li>
+ * <li>after it, so that authenticated requests are charged to their principal; anonymous
+ * ones are charged to their address.</li>
+ * </ul>
+ *
+ * Requests over budget are answered with {@literal 429 Too Many Requests} and a
+ * {@literal Retry-After} header.
+ */
+class RateLimitingWebFilter implements WebFilter, Ordered {
+
+	/**
+	 * Spring Security's WebFilterChainProxy runs at -100.
+	 */
+	private static final int BEFORE_AUTHENTICATION = -101;
+
+	private static final int AFTER_AUTHENTICATION = 0;
+
+	private final RateLimitStore store;
+
+	private final boolean beforeAuthentication;
+
+	private final Counter rejected;
+
+	RateLimitingWebFilter(RateLimitStore store, boolean beforeAuthentication, MeterRegistry meterRegistry) {
+		this.store = store;
+		this.beforeAuthentication = beforeAuthentication;
+		this.rejected = Counter.builder("http.rate-limit.rejected")
+				.description("Requests rejected for exceeding their client's rate limit")
+				.tag("stage", beforeAuthentication ? "address" : "client")
+				.register(meterRegistry);
+	}
+
+	@Override
+	public int getOrder() {
+		return this.beforeAuthentication ? BEFORE_AUTHENTICATION : AFTER_AUTHENTICATION;
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		Mono<String> key = this.beforeAuthentication //
+				? Mono.just("pre-auth:" + clientAddress(exchange)) //
+				: exchange.getPrincipal()
+						.map(Principal::getName)
+						.map(name -> "user:" + name)
+						.defaultIfEmpty(clientAddress(exchange));
+		return key
+				.flatMap(this.store::tryConsume)
+				.flatMap(wait -> wait.isZero() ? chain.filter(exchange) : reject(exchange, wait));
+	}
+
+	private Mono<Void> reject(ServerWebExchange exchange, Duration wait) {
+		this.rejected.increment();
+		exchange.getResponse().setStatusCode(HttpStatus.TOO_MANY_REQUESTS);
+		exchange.getResponse().getHeaders().set(HttpHeaders.RETRY_AFTER, retryAfterSeconds(wait));
+		return exchange.getResponse().setComplete();
+	}
+
+	static String retryAfterSeconds(Duration wait) {
+		long seconds = wait.getSeconds() + (wait.getNano() > 0 ? 1 : 0);
+		return Long.toString(Math.max(1, seconds));
+	}
+
+	private static String clientAddress(ServerWebExchange exchange) {
+		InetSocketAddress address = exchange.getRequest().getRemoteAddress();
+		return "address:" + (address == null ? "unknown" : address.getAddress() == null
+				? address.getHostString() : address.getAddress().getHostAddress());
+	}
+}
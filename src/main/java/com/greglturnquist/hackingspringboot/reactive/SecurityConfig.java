@@ -7,6 +7,8 @@ import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 import org.springframework.data.mongodb.core.MongoOperations;
 import org.springframework.http.HttpMethod;
+import org.springframework.security.authentication.ReactiveAuthenticationManager;
+import org.springframework.security.authentication.UserDetailsRepositoryReactiveAuthenticationManager;
 import org.springframework.security.config.annotation.method.configuration.EnableReactiveMethodSecurity;
 import org.springframework.security.config.web.server.ServerHttpSecurity;
 import org.springframework.security.core.userdetails.ReactiveUserDetailsService;
@@ -15,6 +17,9 @@ import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
 import org.springframework.security.crypto.password.PasswordEncoder;
 import org.springframework.security.web.server.SecurityWebFilterChain;
 
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
 @Configuration
 @EnableReactiveMethodSecurity
 public class SecurityConfig {
@@ -30,14 +35,34 @@ public class SecurityConfig {
 		return new BCryptPasswordEncoder();
 	}
 	
+	/**
+	 * {@link UserRepository} runs on the synchronous driver and queries as soon as it is
+	 * called, so the lookup is deferred onto the blocking scheduler.
+	 */
+	@Bean
+	public ReactiveUserDetailsService userDetailsService(UserRepository repository, Scheduler blockingScheduler,
+			WarmupUser warmupUser) {
+		return username -> warmupUser.find(username)
+			.switchIfEmpty(Mono.defer(() -> repository.findByName(username))
+				.subscribeOn(blockingScheduler)
+				.map(user -> User
+					.withUsername(user.getName())
+					.password(user.getPassword())
+					.authorities(user.getRoles().toArray(new String[0]))
+					.build()));
+	}
+	
+	/**
+	 * BCrypt is deliberately slow, so password checks run on the blocking scheduler too.
+	 */
 	@Bean
-	public ReactiveUserDetailsService userDetailsService(UserRepository repository) {
-		return username -> repository.findByName(username)
-			.map(user -> User
-				.withUsername(user.getName())
-				.password(user.getPassword())
-				.authorities(user.getRoles().toArray(new String[0]))
-				.build());
+	ReactiveAuthenticationManager authenticationManager(ReactiveUserDetailsService userDetailsService,
+			PasswordEncoder passwordEncoder, Scheduler blockingScheduler, Tracing tracing) {
+		UserDetailsRepositoryReactiveAuthenticationManager manager =
+				new UserDetailsRepositoryReactiveAuthenticationManager(userDetailsService);
+		manager.setPasswordEncoder(passwordEncoder);
+		manager.setScheduler(blockingScheduler);
+		return authentication -> tracing.mono("security.authenticate", manager.authenticate(authentication));
 	}
 	
 	@Bean
@@ -57,6 +82,7 @@ public class SecurityConfig {
 			.authorizeExchange(exchanges -> exchanges
 				.pathMatchers(HttpMethod.POST, "/item").hasRole(INVENTORY)
 				.pathMatchers(HttpMethod.DELETE, "/item/**").hasRole(INVENTORY)
+				.pathMatchers("/actuator/health/**").permitAll()
 				.anyExchange().authenticated()
 				.and()
 				.httpBasic()
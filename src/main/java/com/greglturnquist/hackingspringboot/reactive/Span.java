@@ -0,0 +1,118 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * A timed operation within a trace, identified the way W3C trace context and OTLP do: a
+ * 16 byte trace id and an 8 byte span id, both hex encoded.
+ */
+final class Span {
+
+	private final String traceId;
+
+	private final String spanId;
+
+	private final String parentSpanId;
+
+	private volatile String name;
+
+	private final long startEpochNanos;
+
+	private final long startNanos;
+
+	private volatile long durationNanos = -1;
+
+	private volatile String error;
+
+	private Span(String traceId, String parentSpanId, String name) {
+		this.traceId = traceId;
+		this.spanId = randomHex(8);
+		this.parentSpanId = parentSpanId;
+		this.name = name;
+		this.startEpochNanos = System.currentTimeMillis() * 1_000_000;
+		this.startNanos = System.nanoTime();
+	}
+
+	static Span root(String name) {
+		return new Span(randomHex(16), null, name);
+	}
+
+	/**
+	 * Start a span continuing a trace begun elsewhere.
+	 */
+	static Span continued(String traceId, String parentSpanId, String name) {
+		return new Span(traceId, parentSpanId, name);
+	}
+
+	Span child(String name) {
+		return new Span(this.traceId, this.spanId, name);
+	}
+
+	/**
+	 * End the span, once; {@literal true} if this call ended it.
+	 */
+	boolean end(Throwable error) {
+		if (this.durationNanos >= 0) {
+			return false;
+		}
+		this.error = error == null ? null : error.getClass().getName();
+		this.durationNanos = System.nanoTime() - this.startNanos;
+		return true;
+	}
+
+	String getTraceId() {
+		return this.traceId;
+	}
+
+	String getSpanId() {
+		return this.spanId;
+	}
+
+	String getParentSpanId() {
+		return this.parentSpanId;
+	}
+
+	String getName() {
+		return this.name;
+	}
+
+	void rename(String name) {
+		this.name = name;
+	}
+
+	long getStartEpochNanos() {
+		return this.startEpochNanos;
+	}
+
+	long getDurationNanos() {
+		return this.durationNanos;
+	}
+
+	String getError() {
+		return this.error;
+	}
+
+	private static String randomHex(int bytes) {
+		StringBuilder hex = new StringBuilder(bytes * 2);
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		for (int i = 0; i < bytes; i++) {
+			hex.append(Character.forDigit(random.nextInt(16), 16)).append(Character.forDigit(random.nextInt(16), 16));
+		}
+		return hex.toString();
+	}
+}
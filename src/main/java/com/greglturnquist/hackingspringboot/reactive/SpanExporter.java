@@ -0,0 +1,163 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * Writes finished spans to {@code tracing.file}, one JSON object per line with the field
+ * names of OTLP's JSON encoding, for a collector to tail. Spans are handed over through a
+ * bounded queue and written in batches by a single background thread, so request threads
+ * never wait on the disk; when the queue is full, spans are dropped and counted.
+ *
+ * Once the file reaches {@code tracing.max-file-bytes} it is renamed with a {@code .1}
+ * suffix, replacing the previous one, and a new file is started; the collector has to keep
+ * up within one file's worth of spans. Zero or less lets the file grow without bound.
+ */
+@Component
+class SpanExporter implements DisposableBean {
+
+	private static final int BATCH = 512;
+
+	private final BlockingQueue<Span> queue;
+
+	private final ObjectMapper mapper;
+
+	private final Path file;
+
+	private final Path rolled;
+
+	private final long maxFileBytes;
+
+	private final Counter dropped;
+
+	private final Thread writer;
+
+	private volatile boolean running = true;
+
+	SpanExporter(ObjectMapper mapper, @Value("${tracing.file:spans.jsonl}") String file,
+			@Value("${tracing.max-file-bytes:104857600}") long maxFileBytes,
+			@Value("${tracing.queue-size:8192}") int queueSize, MeterRegistry meterRegistry) {
+		this.queue = new ArrayBlockingQueue<>(queueSize);
+		this.mapper = mapper;
+		this.file = Paths.get(file);
+		this.rolled = Paths.get(file + ".1");
+		this.maxFileBytes = maxFileBytes;
+		this.dropped = Counter.builder("tracing.spans.dropped")
+				.description("Finished spans dropped because the exporter fell behind")
+				.register(meterRegistry);
+		this.writer = new Thread(this::run, "span-exporter");
+		this.writer.setDaemon(true);
+		this.writer.start();
+	}
+
+	void export(Span span) {
+		if (!this.queue.offer(span)) {
+			this.dropped.increment();
+		}
+	}
+
+	private void run() {
+		List<Span> batch = new ArrayList<>(BATCH);
+		while (this.running || !this.queue.isEmpty()) {
+			try {
+				Span first = this.queue.poll(100, TimeUnit.MILLISECONDS);
+				if (first == null) {
+					continue;
+				}
+				batch.add(first);
+				this.queue.drainTo(batch, BATCH - 1);
+				write(batch);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return;
+			} catch (UncheckedIOException e) {
+				this.dropped.increment(batch.size());
+			} finally {
+				batch.clear();
+			}
+		}
+	}
+
+	private void write(List<Span> batch) {
+		try {
+			if (this.maxFileBytes > 0 && Files.exists(this.file) && Files.size(this.file) >= this.maxFileBytes) {
+				Files.move(this.file, this.rolled, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+		try (BufferedWriter out = Files.newBufferedWriter(this.file, StandardCharsets.UTF_8,
+				StandardOpenOption.CREATE, StandardOpenOption.APPEND)) {
+			for (Span span : batch) {
+				out.write(toJson(span));
+				out.newLine();
+			}
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		}
+	}
+
+	String toJson(Span span) throws JsonProcessingException {
+		Map<String, Object> json = new LinkedHashMap<>();
+		json.put("traceId", span.getTraceId());
+		json.put("spanId", span.getSpanId());
+		if (span.getParentSpanId() != null) {
+			json.put("parentSpanId", span.getParentSpanId());
+		}
+		json.put("name", span.getName());
+		json.put("startTimeUnixNano", span.getStartEpochNanos());
+		json.put("endTimeUnixNano", span.getStartEpochNanos() + span.getDurationNanos());
+		if (span.getError() != null) {
+			Map<String, Object> status = new LinkedHashMap<>();
+			status.put("code", "STATUS_CODE_ERROR");
+			status.put("message", span.getError());
+			json.put("status", status);
+		}
+		return this.mapper.writeValueAsString(json);
+	}
+
+	@Override
+	public void destroy() throws InterruptedException {
+		this.running = false;
+		this.writer.join(TimeUnit.SECONDS.toMillis(5));
+	}
+}
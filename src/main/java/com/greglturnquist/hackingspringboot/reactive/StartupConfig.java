@@ -0,0 +1,54 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.LazyInitializationExcludeFilter;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.embedded.netty.NettyReactiveWebServerFactory;
+import org.springframework.boot.web.server.WebServerFactoryCustomizer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import reactor.netty.resources.LoopResources;
+
+/**
+ * Settings behind the {@code startup} profile. With {@code spring.main.lazy-initialization}
+ * beans are only created when first used; the ones that have to exist from the start,
+ * background jobs and the warmup, are excluded here.
+ */
+@Configuration
+public class StartupConfig {
+
+	@Bean
+	static LazyInitializationExcludeFilter eagerBackgroundJobs() {
+		return LazyInitializationExcludeFilter.forBeanTypes(CacheWarmup.class, CartCompaction.class, OutboxWorker.class,
+				InMemoryRateLimitStore.class);
+	}
+
+	/**
+	 * Reactor Netty sizes its event loop by the CPU count the JVM sees, which on a shared host
+	 * can be far more threads than a small container has memory or CPU for.
+	 */
+	@Bean
+	@ConditionalOnProperty("server.netty.event-loop-threads")
+	WebServerFactoryCustomizer<NettyReactiveWebServerFactory> nettyEventLoop(
+			@Value("${server.netty.event-loop-threads}") int threads) {
+		return factory -> factory.addServerCustomizers(server -> server
+				.tcpConfiguration(tcp -> tcp.runOn(LoopResources.create("http", threads, true))));
+	}
+}
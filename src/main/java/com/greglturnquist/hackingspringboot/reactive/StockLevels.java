@@ -0,0 +1,209 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Stock levels of the catalog's items. An item's stock is split over
+ * {@code stock.slots} counter documents, so concurrent reservations of a hot item spread
+ * over several documents instead of queueing on the lock of one.
+ *
+ * A reservation is a conditional {@code $inc} on one slot that only matches while the slot
+ * holds enough, so a counter can never go negative and nothing is ever oversold. Items
+ * without any counters aren't stock-managed and can always be reserved.
+ */
+@Component
+class StockLevels {
+
+	static final String COLLECTION = "stock";
+
+	private static final String STOCK = "stock";
+
+	private final ReactiveMongoOperations operations;
+
+	private final MongoGuard guard;
+
+	private final int slots;
+
+	private final Mono<String> index;
+
+	StockLevels(ReactiveMongoOperations operations, MongoGuard guard, @Value("${stock.slots:8}") int slots) {
+		this.operations = operations;
+		this.guard = guard;
+		this.slots = slots;
+		this.index = MongoGuard.cacheSuccess(guard.mono(STOCK, "ensureIndex", operations.indexOps(COLLECTION)
+				.ensureIndex(new Index().on("itemId", Sort.Direction.ASC))));
+	}
+
+	/**
+	 * Set the stock of an item, spread evenly over its slots.
+	 */
+	Mono<Void> setStock(String itemId, long available) {
+		if (available < 0) {
+			return Mono.error(new IllegalArgumentException("Stock of item " + itemId + " cannot be negative"));
+		}
+		return this.index.thenMany(Flux.range(0, this.slots)
+				.concatMap(slot -> this.guard.mono(STOCK, "setStock", this.operations.upsert(
+						query(where("_id").is(slotId(itemId, slot))),
+						new Update().set("itemId", itemId)
+								.set("available", available / this.slots + (slot < available % this.slots ? 1 : 0)),
+						COLLECTION))))
+				.then();
+	}
+
+	Mono<Long> available(String itemId) {
+		return this.guard.flux(STOCK, "available", this.operations.find(query(where("itemId").is(itemId)),
+				Document.class, COLLECTION))
+				.map(slot -> ((Number) slot.get("available")).longValue())
+				.reduce(0L, Long::sum);
+	}
+
+	Mono<Void> removeStock(String itemId) {
+		return this.guard.mono(STOCK, "removeStock",
+				this.operations.remove(query(where("itemId").is(itemId)), COLLECTION)).then();
+	}
+
+	/**
+	 * Reserve all the given quantities or none of them. Yields the quantities that were
+	 * actually taken from counters, leaving out untracked items: only those may ever be
+	 * released again, or stock set for such an item later on would be inflated.
+	 */
+	Mono<Map<String, Integer>> reserve(Map<String, Integer> quantities) {
+		return Mono.defer(() -> {
+			Map<String, Integer> taken = new LinkedHashMap<>();
+			return Flux.fromIterable(quantities.entrySet())
+					.concatMap(quantity -> reserve(quantity.getKey(), quantity.getValue())
+							.filter(Boolean::booleanValue)
+							.doOnNext(tracked -> taken.put(quantity.getKey(), quantity.getValue())))
+					.then(Mono.just(taken))
+					.onErrorResume(OutOfStockException.class, e -> release(taken).then(Mono.error(e)));
+		});
+	}
+
+	/**
+	 * Reserve a quantity of an item: in one piece from the first slot that holds enough, or
+	 * else as much as each slot holds, handing back what was taken if the stock runs out.
+	 * Yields whether the item is tracked, that is whether anything was taken.
+	 */
+	Mono<Boolean> reserve(String itemId, int quantity) {
+		return takeFromAnySlot(itemId, quantity)
+				.flatMap(taken -> {
+					if (taken) {
+						return Mono.just(true);
+					}
+					if (quantity == 1) {
+						return unlessUntracked(itemId, quantity);
+					}
+					return takeFromEachSlot(itemId, quantity)
+							.flatMap(units -> units == quantity //
+									? Mono.just(true) //
+									: release(itemId, units).then(unlessUntracked(itemId, quantity)));
+				});
+	}
+
+	/**
+	 * Hand back reserved quantities.
+	 */
+	Mono<Void> release(Map<String, Integer> quantities) {
+		return Flux.fromIterable(quantities.entrySet())
+				.concatMap(quantity -> release(quantity.getKey(), quantity.getValue()))
+				.then();
+	}
+
+	Mono<Void> release(String itemId, int quantity) {
+		if (quantity <= 0) {
+			return Mono.empty();
+		}
+		return this.guard.mono(STOCK, "release", this.operations.updateFirst(
+				query(where("_id").is(slotId(itemId, randomSlot()))),
+				new Update().inc("available", quantity), COLLECTION))
+				.then();
+	}
+
+	/**
+	 * Try the slots in turn, starting from a random one, until one of them holds enough.
+	 */
+	private Mono<Boolean> takeFromAnySlot(String itemId, int quantity) {
+		int first = randomSlot();
+		return Flux.range(0, this.slots)
+				.concatMap(offset -> this.guard.mono(STOCK, "reserve", this.operations.updateFirst(
+						query(where("_id").is(slotId(itemId, (first + offset) % this.slots))
+								.and("available").gte(quantity)),
+						new Update().inc("available", -quantity), COLLECTION)))
+				.any(result -> result.getModifiedCount() == 1);
+	}
+
+	/**
+	 * Take what each slot holds, up to the quantity still missing, so a reservation costs
+	 * at most one read and one write per slot whatever its size. A slot drained by someone
+	 * else in between is skipped. Yields the number of units taken.
+	 */
+	private Mono<Integer> takeFromEachSlot(String itemId, int quantity) {
+		return Mono.defer(() -> {
+			int[] missing = { quantity };
+			return this.guard.flux(STOCK, "slots", this.operations.find(query(where("itemId").is(itemId)
+							.and("available").gt(0)), Document.class, COLLECTION))
+					// Read all slots before writing, so the read's bulkhead permit is handed back first.
+					.collectList()
+					.flatMapMany(Flux::fromIterable)
+					.concatMap(slot -> {
+						int take = (int) Math.min(((Number) slot.get("available")).longValue(), missing[0]);
+						if (take == 0) {
+							return Mono.empty();
+						}
+						return this.guard.mono(STOCK, "reserve", this.operations.updateFirst(
+								query(where("_id").is(slot.get("_id")).and("available").gte(take)),
+								new Update().inc("available", -take), COLLECTION))
+								.filter(result -> result.getModifiedCount() == 1)
+								.doOnNext(result -> missing[0] -= take);
+					})
+					.then(Mono.fromCallable(() -> quantity - missing[0]));
+		});
+	}
+
+	private Mono<Boolean> unlessUntracked(String itemId, int quantity) {
+		return this.guard.mono(STOCK, "exists", this.operations.exists(query(where("itemId").is(itemId)), COLLECTION))
+				.flatMap(tracked -> tracked //
+						? Mono.<Boolean> error(new OutOfStockException(itemId, quantity)) //
+						: Mono.just(false));
+	}
+
+	private int randomSlot() {
+		return ThreadLocalRandom.current().nextInt(this.slots);
+	}
+
+	private static String slotId(String itemId, int slot) {
+		return itemId + ":" + slot;
+	}
+}
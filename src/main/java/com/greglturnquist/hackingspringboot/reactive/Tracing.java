@@ -0,0 +1,122 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Lightweight request tracing. The {@link TracingWebFilter} opens a span for a sampled
+ * request and puts it in the Reactor {@code Context}; controllers, {@link InventoryService},
+ * authentication and every Mongo call made through {@link MongoGuard} add child spans with
+ * {@link #mono} and {@link #flux}, and finished spans go to the {@link SpanExporter}.
+ *
+ * Only {@code tracing.sample-rate} of the requests are traced. A caller's W3C
+ * {@code traceparent} header asking for a trace is honoured up to
+ * {@code tracing.max-forced-per-second} times a second, so clients can't make every request
+ * pay for tracing; past that its requests are sampled like any other, still continuing the
+ * caller's trace. For unsampled requests the only cost is looking up the span in the
+ * context.
+ */
+@Component
+class Tracing {
+
+	private final SpanExporter exporter;
+
+	private final double sampleRate;
+
+	private final int maxForcedPerSecond;
+
+	/**
+	 * The current second in the high half, the traces forced within it in the low half.
+	 */
+	private final AtomicLong forced = new AtomicLong();
+
+	Tracing(SpanExporter exporter, @Value("${tracing.sample-rate:0.01}") double sampleRate,
+			@Value("${tracing.max-forced-per-second:10}") int maxForcedPerSecond) {
+		this.exporter = exporter;
+		this.sampleRate = sampleRate;
+		this.maxForcedPerSecond = maxForcedPerSecond;
+	}
+
+	/**
+	 * Start the root span of a request, or return {@literal null} if it isn't sampled.
+	 */
+	Span startRequest(String name, String traceparent) {
+		// 00-<trace id>-<parent span id>-<flags>
+		if (traceparent != null && traceparent.length() == 55 && traceparent.startsWith("00-")) {
+			boolean sampled = (Character.digit(traceparent.charAt(54), 16) & 1) == 1;
+			return sampled && tryForce() || sampled() //
+					? Span.continued(traceparent.substring(3, 35), traceparent.substring(36, 52), name) //
+					: null;
+		}
+		return sampled() ? Span.root(name) : null;
+	}
+
+	private boolean sampled() {
+		return this.sampleRate > 0 && ThreadLocalRandom.current().nextDouble() < this.sampleRate;
+	}
+
+	private boolean tryForce() {
+		long second = System.currentTimeMillis() / 1000;
+		while (true) {
+			long state = this.forced.get();
+			long count = (state >>> 32) == second ? state & 0xFFFFFFFFL : 0;
+			if (count >= this.maxForcedPerSecond) {
+				return false;
+			}
+			if (this.forced.compareAndSet(state, second << 32 | count + 1)) {
+				return true;
+			}
+		}
+	}
+
+	void end(Span span, Throwable error) {
+		if (span.end(error)) {
+			this.exporter.export(span);
+		}
+	}
+
+	<T> Mono<T> mono(String name, Mono<T> call) {
+		return Mono.deferWithContext(context -> {
+			if (!context.hasKey(Span.class)) {
+				return call;
+			}
+			Span span = context.<Span> get(Span.class).child(name);
+			return call.subscriberContext(inner -> inner.put(Span.class, span))
+					.doOnError(error -> end(span, error))
+					.doFinally(signal -> end(span, null));
+		});
+	}
+
+	<T> Flux<T> flux(String name, Flux<T> call) {
+		return Flux.deferWithContext(context -> {
+			if (!context.hasKey(Span.class)) {
+				return call;
+			}
+			Span span = context.<Span> get(Span.class).child(name);
+			return call.subscriberContext(inner -> inner.put(Span.class, span))
+					.doOnError(error -> end(span, error))
+					.doFinally(signal -> end(span, null));
+		});
+	}
+}
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.greglturnquist.hackingspringboot.reactive;
+
+import org.springframework.core.Ordered;
+import org.springframework.stereotype.Component;
+import org.springframework.web.reactive.HandlerMapping;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilter;
+import org.springframework.web.server.WebFilterChain;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * Opens the root span of sampled requests. Runs ahead of Spring Security, so the span
+ * covers authentication, and once the request is handled it is named after the matched
+ * route rather than the raw path.
+ */
+@Component
+class TracingWebFilter implements WebFilter, Ordered {
+
+	private final Tracing tracing;
+
+	TracingWebFilter(Tracing tracing) {
+		this.tracing = tracing;
+	}
+
+	@Override
+	public int getOrder() {
+		// Behind admission control at -200, ahead of Spring Security's WebFilterChainProxy at -100.
+		return -150;
+	}
+
+	@Override
+	public Mono<Void> filter(ServerWebExchange exchange, WebFilterChain chain) {
+		String method = exchange.getRequest().getMethodValue();
+		Span span = this.tracing.startRequest(method + " " + exchange.getRequest().getPath().value(),
+				exchange.getRequest().getHeaders().getFirst("traceparent"));
+		if (span == null) {
+			return chain.filter(exchange);
+		}
+		return chain.filter(exchange)
+				.subscriberContext(context -> context.put(Span.class, span))
+				.doOnError(error -> this.tracing.end(span, error))
+				.doFinally(signal -> {
+					Object route = exchange.getAttribute(HandlerMapping.BEST_MATCHING_PATTERN_ATTRIBUTE);
+					if (route != null) {
+						span.rename(method + " " + route);
+					}
+					this.tracing.end(span, null);
+				});
+	}
+}
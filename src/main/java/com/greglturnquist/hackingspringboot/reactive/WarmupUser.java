@@ -0,0 +1,67 @@
+/*
+ * Copyright 2019 the original author or authors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static com.greglturnquist.hackingspringboot.reactive.SecurityConfig.USER;
+import static com.greglturnquist.hackingspringboot.reactive.SecurityConfig.role;
+
+import java.util.UUID;
+
+import org.springframework.security.core.userdetails.User;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
+
+import reactor.core.publisher.Mono;
+
+/**
+ * A throwaway user the warmup signs in as to exercise the application's own endpoints. It
+ * only exists in memory, with a random name and password, while the warmup runs.
+ */
+@Component
+class WarmupUser {
+
+	private final PasswordEncoder passwordEncoder;
+
+	private volatile UserDetails user;
+
+	WarmupUser(PasswordEncoder passwordEncoder) {
+		this.passwordEncoder = passwordEncoder;
+	}
+
+	/**
+	 * Create the user and return its name and password, in that order.
+	 */
+	String[] create() {
+		String name = "warmup-" + UUID.randomUUID();
+		String password = UUID.randomUUID().toString();
+		this.user = User.withUsername(name)
+				.password(this.passwordEncoder.encode(password))
+				.authorities(role(USER))
+				.build();
+		return new String[] { name, password };
+	}
+
+	void remove() {
+		this.user = null;
+	}
+
+	Mono<UserDetails> find(String username) {
+		UserDetails user = this.user;
+		return user != null && user.getUsername().equals(username) ? Mono.just(user) : Mono.empty();
+	}
+}
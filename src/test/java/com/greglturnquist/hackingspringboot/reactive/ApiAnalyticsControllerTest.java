@@ -0,0 +1,124 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Duration;
+import java.time.Instant;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.query.Update;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+@SpringBootTest
+@AutoConfigureWebTestClient
+public class ApiAnalyticsControllerTest {
+
+	@Autowired
+	WebTestClient webTestClient;
+
+	@Autowired
+	CartAnalytics analytics;
+
+	@Autowired
+	InventoryService inventoryService;
+
+	@Autowired
+	ItemRepository repository;
+
+	@Autowired
+	CartRouter router;
+
+	@Autowired
+	CartCompaction compaction;
+
+	@Test
+	@WithMockUser(username = "alice", roles = { "SOME_OTHER_ROLE" })
+	void reportsNeedTheInventoryRole() {
+		this.webTestClient.get().uri("/api/analytics/items")
+			.exchange()
+			.expectStatus().isForbidden();
+
+		this.webTestClient.get().uri("/api/analytics/cart-values")
+			.exchange()
+			.expectStatus().isForbidden();
+
+		this.webTestClient.post().uri("/api/analytics/rebuild")
+			.exchange()
+			.expectStatus().isForbidden();
+	}
+
+	@Test
+	void reportsNeedCredentials() {
+		this.webTestClient.get().uri("/api/analytics/items")
+			.exchange()
+			.expectStatus().isUnauthorized();
+	}
+
+	@Test
+	@WithMockUser(username = "alice", roles = { "INVENTORY" })
+	void inventoryUsersSeeTheReports() {
+		this.webTestClient.get().uri("/api/analytics/cart-values")
+			.exchange()
+			.expectStatus().isOk();
+	}
+
+	@Test
+	void cartChangesCheckoutsAndExpiriesAreCounted() {
+		Item lamp = this.repository.save(new Item("analytics-lamp", "Lava lamp", "groovy", 1999)).block();
+		String cart = HomeController.cartName("olga");
+		String expiring = HomeController.cartName("pete");
+		long[] before = { carts(0), carts(1000), carts(2500) };
+
+		// Two lamps: 3998 in the 2500 bucket.
+		this.inventoryService.applyCartOperation(cart, new CartOperation(lamp.getId(), 2)).block();
+		this.analytics.flushPending().block();
+		assertThat(demand(lamp).getInCarts()).isEqualTo(2);
+		assertThat(demand(lamp).getAdded()).isEqualTo(2);
+		assertThat(carts(2500)).isEqualTo(before[2] + 1);
+
+		// One lamp: 1999 in the 1000 bucket.
+		this.inventoryService.applyCartOperation(cart, new CartOperation(lamp.getId(), -1)).block();
+		this.analytics.flushPending().block();
+		assertThat(demand(lamp).getInCarts()).isEqualTo(1);
+		assertThat(demand(lamp).getRemoved()).isEqualTo(1);
+		assertThat(carts(2500)).isEqualTo(before[2]);
+		assertThat(carts(1000)).isEqualTo(before[1] + 1);
+
+		this.inventoryService.checkout(cart).block();
+		this.analytics.flushPending().block();
+		assertThat(demand(lamp).getInCarts()).isZero();
+		assertThat(demand(lamp).getOrdered()).isEqualTo(1);
+		assertThat(carts(1000)).isEqualTo(before[1]);
+
+		this.inventoryService.applyCartOperation(expiring, new CartOperation(lamp.getId(), 1)).block();
+		this.analytics.flushPending().block();
+		assertThat(demand(lamp).getInCarts()).isEqualTo(1);
+		assertThat(carts(1000)).isEqualTo(before[1] + 1);
+
+		this.router.route(expiring).updateFirst(query(where("id").is(expiring)),
+				new Update().set("lastTouched", Instant.now().minus(Duration.ofDays(31))), Cart.class).block();
+		this.compaction.compactAll().block();
+		this.analytics.flushPending().block();
+		assertThat(demand(lamp).getInCarts()).isZero();
+		assertThat(carts(1000)).isEqualTo(before[1]);
+		assertThat(carts(0)).isEqualTo(before[0]);
+	}
+
+	private ItemDemand demand(Item item) {
+		return this.analytics.demand(item.getId()).block();
+	}
+
+	private long carts(long lowerBoundMinor) {
+		return this.analytics.cartValues()
+			.filter(bucket -> bucket.getLowerBoundMinor() == lowerBoundMinor)
+			.map(CartValueBucket::getCarts)
+			.reduce(0L, Long::sum)
+			.block();
+	}
+}
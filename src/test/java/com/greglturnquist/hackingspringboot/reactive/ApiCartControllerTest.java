@@ -0,0 +1,165 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.io.IOException;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.security.test.context.support.WithMockUser;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+@SpringBootTest
+@AutoConfigureWebTestClient
+public class ApiCartControllerTest {
+
+	@Autowired
+	WebTestClient webTestClient;
+
+	@Autowired
+	ItemRepository repository;
+
+	@Test
+	void noCredentialsFails() {
+		this.webTestClient.get().uri("/api/cart")
+			.exchange()
+			.expectStatus().isUnauthorized();
+	}
+
+	@Test
+	@WithMockUser(username = "erin")
+	void batchOfOperationsIsAppliedInOneRequest() {
+		String clock = this.repository.findByName("Alf alarm clock").map(Item::getId).block();
+		String tray = this.repository.findByName("Smurf TV tray").map(Item::getId).block();
+
+		this.webTestClient.post().uri("/api/cart/operations")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[" +
+					"{\"itemId\": \"" + clock + "\", \"delta\": 3}, " +
+					"{\"itemId\": \"" + tray + "\", \"delta\": 1}, " +
+					"{\"itemId\": \"" + clock + "\", \"delta\": -1}" +
+					"]")
+			.exchange()
+			.expectStatus().isOk();
+
+		this.webTestClient.post().uri("/api/cart/operations")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[{\"itemId\": \"" + tray + "\", \"delta\": -1}]")
+			.exchange()
+			.expectStatus().isOk();
+
+		this.webTestClient.get().uri("/api/cart")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$.id").isEqualTo(HomeController.cartName("erin"))
+			.jsonPath("$.cartItems.length()").isEqualTo(1)
+			.jsonPath("$.cartItems[0].item.id").isEqualTo(clock)
+			.jsonPath("$.cartItems[0].quantity").isEqualTo(2);
+
+		this.webTestClient.get().uri("/api/cart/summary")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$.itemCount").isEqualTo(2)
+			.jsonPath("$.totalMinor").isEqualTo(3998)
+			.jsonPath("$.cartItems").doesNotExist();
+	}
+
+	@Test
+	@WithMockUser(username = "ines")
+	void deltasBeyondTheMaximumQuantityAreRejected() {
+		String clock = this.repository.findByName("Alf alarm clock").map(Item::getId).block();
+
+		this.webTestClient.post().uri("/api/cart/operations")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[{\"itemId\": \"" + clock + "\", \"delta\": 1000000}]")
+			.exchange()
+			.expectStatus().isBadRequest();
+
+		// Each within the limit, but not once merged.
+		this.webTestClient.post().uri("/api/cart/operations")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[{\"itemId\": \"" + clock + "\", \"delta\": 600}, " +
+					"{\"itemId\": \"" + clock + "\", \"delta\": 600}]")
+			.exchange()
+			.expectStatus().isBadRequest();
+
+		this.webTestClient.get().uri("/api/cart")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$.cartItems.length()").isEqualTo(0);
+	}
+
+	@Test
+	@WithMockUser(username = "frank")
+	void checkoutTurnsTheCartIntoAnOrder() {
+		String clock = this.repository.findByName("Alf alarm clock").map(Item::getId).block();
+
+		this.webTestClient.post().uri("/api/cart/operations")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[{\"itemId\": \"" + clock + "\", \"delta\": 2}]")
+			.exchange()
+			.expectStatus().isOk();
+
+		this.webTestClient.post().uri("/api/cart/checkout")
+			.exchange()
+			.expectStatus().isCreated()
+			.expectBody()
+			.jsonPath("$.cartId").isEqualTo(HomeController.cartName("frank"))
+			.jsonPath("$.lines[0].itemId").isEqualTo(clock)
+			.jsonPath("$.lines[0].quantity").isEqualTo(2)
+			.jsonPath("$.totalMinor").isEqualTo(3998);
+
+		this.webTestClient.get().uri("/api/cart")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$.cartItems.length()").isEqualTo(0);
+
+		this.webTestClient.post().uri("/api/cart/checkout")
+			.exchange()
+			.expectStatus().isEqualTo(422);
+	}
+
+	@Test
+	@WithMockUser(username = "gina")
+	void cartIsAvailableAsCborAndSmile() throws IOException {
+		String clock = this.repository.findByName("Alf alarm clock").map(Item::getId).block();
+
+		this.webTestClient.post().uri("/api/cart/operations")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("[{\"itemId\": \"" + clock + "\", \"delta\": 2}]")
+			.exchange()
+			.expectStatus().isOk();
+
+		assertCart(MediaType.APPLICATION_CBOR, new CBORFactory(), clock);
+		assertCart(MediaType.parseMediaType("application/x-jackson-smile"), new SmileFactory(), clock);
+	}
+
+	private void assertCart(MediaType mediaType, JsonFactory factory, String itemId) throws IOException {
+		byte[] body = this.webTestClient.get().uri("/api/cart")
+			.accept(mediaType)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentType(mediaType)
+			.expectBody(byte[].class)
+			.returnResult().getResponseBody();
+
+		JsonNode cart = new ObjectMapper(factory).readTree(body);
+		assertThat(cart.get("id").asText()).isEqualTo(HomeController.cartName("gina"));
+		assertThat(cart.get("cartItems").get(0).get("item").get("id").asText()).isEqualTo(itemId);
+		assertThat(cart.get("cartItems").get(0).get("quantity").asInt()).isEqualTo(2);
+		assertThat(cart.get("totalMinor").asLong()).isEqualTo(3998L);
+	}
+}
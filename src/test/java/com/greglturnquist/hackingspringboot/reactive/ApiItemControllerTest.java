@@ -2,24 +2,43 @@ package com.greglturnquist.hackingspringboot.reactive;
 
 import static org.springframework.hateoas.config.EnableHypermediaSupport.HypermediaType.HAL;
 import static org.assertj.core.api.Assertions.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.io.IOException;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
 import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.core.ParameterizedTypeReference;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.query.Update;
 import org.springframework.hateoas.CollectionModel;
 import org.springframework.hateoas.EntityModel;
 import org.springframework.hateoas.IanaLinkRelations;
 import org.springframework.hateoas.RepresentationModel;
 import org.springframework.hateoas.config.EnableHypermediaSupport;
 import org.springframework.hateoas.config.HypermediaWebTestClientConfigurer;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.MediaType;
+import org.springframework.http.codec.ServerSentEvent;
 import org.springframework.security.test.context.support.WithMockUser;
 import org.springframework.test.web.reactive.server.WebTestClient;
 import org.springframework.hateoas.server.core.TypeReferences.CollectionModelType;
 import org.springframework.hateoas.server.core.TypeReferences.EntityModelType;
 
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+
+import reactor.core.Disposable;
+import reactor.core.publisher.Flux;
 import reactor.test.StepVerifier;
 
 @SpringBootTest
@@ -33,6 +52,9 @@ public class ApiItemControllerTest {
 	@Autowired
 	ItemRepository repository;
 	
+	@Autowired
+	ReactiveMongoOperations operations;
+
 	@Autowired
 	HypermediaWebTestClientConfigurer webClientConfigurer;
 	
@@ -91,7 +113,7 @@ public class ApiItemControllerTest {
 			.as(StepVerifier::create)
 			.expectNextMatches(item -> {
 				assertThat(item.getDescription()).isEqualTo("upgrade");
-				assertThat(item.getPrice()).isEqualTo(999.99);
+				assertThat(item.getPriceMinor()).isEqualTo(99999L);
 				return true;
 			})
 			.verifyComplete();
@@ -185,4 +207,169 @@ public class ApiItemControllerTest {
 		assertThat(item.hasLink("delete")).isTrue();
 	}
 
+	@Test
+	@WithMockUser(username = "alice")
+	void conditionalGetOfItemsReturnsNotModified() {
+		String etag = this.webTestClient.get().uri("/api/items")
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().exists(HttpHeaders.ETAG)
+			.returnResult(String.class)
+			.getResponseHeaders().getETag();
+
+		this.webTestClient.get().uri("/api/items")
+			.ifNoneMatch(etag)
+			.exchange()
+			.expectStatus().isNotModified()
+			.expectBody().isEmpty();
+	}
+
+	@Test
+	@WithMockUser(username = "alice", roles = { "INVENTORY" })
+	void changingInventoryInvalidatesEtag() {
+		String etag = this.webTestClient.get().uri("/api/items")
+			.exchange()
+			.returnResult(String.class)
+			.getResponseHeaders().getETag();
+
+		this.webTestClient
+			.post().uri("/api/items/add")
+			.contentType(MediaType.APPLICATION_JSON)
+			.bodyValue("{" +
+					"\"name\": \"Etag lamp\", " + 
+					"\"description\": \"new\", " + 
+					"\"price\": 9.99" + 
+					"}")
+			.exchange()
+			.expectStatus().isCreated();
+
+		this.webTestClient.get().uri("/api/items")
+			.ifNoneMatch(etag)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().value(HttpHeaders.ETAG, value -> assertThat(value).isNotEqualTo(etag));
+	}
+
+	@Test
+	@WithMockUser(username = "alice")
+	void changesMadeByAnotherNodeInvalidateItemEtag() {
+		Item item = this.repository.save(new Item("Remote lamp", "old", 500)).block();
+
+		String etag = this.webTestClient.get().uri("/api/items/" + item.getId())
+			.exchange()
+			.expectStatus().isOk()
+			.returnResult(String.class)
+			.getResponseHeaders().getETag();
+
+		// What another node's write leaves behind: the changed item and a bumped version.
+		this.operations.updateFirst(query(where("id").is(item.getId())), new Update().set("description", "new"),
+				Item.class)
+			.then(this.operations.upsert(CatalogVersion.selector(), CatalogVersion.bump(), CatalogVersion.COLLECTION))
+			.block();
+
+		this.webTestClient.get().uri("/api/items/" + item.getId())
+			.ifNoneMatch(etag)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().value(HttpHeaders.ETAG, value -> assertThat(value).isNotEqualTo(etag));
+	}
+
+	@Test
+	@WithMockUser(username = "alice")
+	void writesAreStreamedAsServerSentEvents() {
+		Flux<ServerSentEvent<String>> events = this.webTestClient.get().uri("/api/items/events")
+			.accept(MediaType.TEXT_EVENT_STREAM)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentTypeCompatibleWith(MediaType.TEXT_EVENT_STREAM)
+			.returnResult(new ParameterizedTypeReference<ServerSentEvent<String>>() {})
+			.getResponseBody();
+
+		// The change stream opens asynchronously, so keep writing until an event comes through.
+		Disposable writes = Flux.interval(Duration.ofMillis(250))
+			.concatMap(tick -> this.repository.save(new Item("Streamed lamp", "new", 500)))
+			.subscribe();
+
+		try {
+			events.filter(event -> "created".equals(event.event()))
+				.as(StepVerifier::create)
+				.expectNextMatches(event -> {
+					assertThat(event.data()).contains("\"type\":\"CREATED\"", "\"name\":\"Streamed lamp\"");
+					return true;
+				})
+				.thenCancel()
+				.verify(Duration.ofSeconds(10));
+		} finally {
+			writes.dispose();
+		}
+	}
+
+	@Test
+	@WithMockUser(username = "alice")
+	void profileIsServedWithCacheValidators() {
+		String etag = this.webTestClient.get().uri("/api/items/profile")
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentType(MediaType.APPLICATION_JSON)
+			.expectHeader().valueMatches(HttpHeaders.CACHE_CONTROL, ".*max-age=3600.*")
+			.expectBody(String.class).value(body -> assertThat(body).contains("Item-representation"))
+			.returnResult()
+			.getResponseHeaders().getETag();
+
+		this.webTestClient.get().uri("/api/items/profile")
+			.ifNoneMatch(etag)
+			.exchange()
+			.expectStatus().isNotModified();
+	}
+
+	@Test
+	@WithMockUser(username = "alice")
+	void itemsAreAvailableAsCbor() throws IOException {
+		byte[] body = this.webTestClient.get().uri("/api/items")
+			.accept(MediaType.APPLICATION_CBOR)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentType(MediaType.APPLICATION_CBOR)
+			.expectBody(byte[].class)
+			.returnResult().getResponseBody();
+
+		assertThat(itemNames(new ObjectMapper(new CBORFactory()).readTree(body))).contains("Alf alarm clock");
+	}
+
+	@Test
+	@WithMockUser(username = "alice")
+	void itemsAreAvailableAsSmile() throws IOException {
+		MediaType smile = MediaType.parseMediaType("application/x-jackson-smile");
+
+		byte[] body = this.webTestClient.get().uri("/api/items")
+			.accept(smile)
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().contentType(smile)
+			.expectBody(byte[].class)
+			.returnResult().getResponseBody();
+
+		assertThat(itemNames(new ObjectMapper(new SmileFactory()).readTree(body))).contains("Alf alarm clock");
+	}
+
+	private static List<String> itemNames(JsonNode collection) {
+		List<String> names = new ArrayList<>();
+		collection.get("content").forEach(item -> {
+			assertThat(item.get("links")).isNotNull();
+			names.add(item.get("name").asText());
+		});
+		return names;
+	}
+
+	@Test
+	@WithMockUser(username = "alice")
+	void profileIsServedPrecompressed() {
+		this.webTestClient.get().uri("/api/items/profile")
+			.header(HttpHeaders.ACCEPT_ENCODING, "gzip, deflate")
+			.exchange()
+			.expectStatus().isOk()
+			.expectHeader().valueEquals(HttpHeaders.CONTENT_ENCODING, "gzip")
+			.expectHeader().valueEquals(HttpHeaders.VARY, HttpHeaders.ACCEPT_ENCODING);
+	}
+
 }
@@ -0,0 +1,61 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+class ApiProfilesTest {
+
+	@Test
+	void gzippedProfileHasItsOwnEtag() throws JsonProcessingException {
+		ApiProfiles.Profile profile = new ApiProfiles(new ObjectMapper()).get("item");
+
+		assertThat(profile.response(headers("identity")).getHeaders().getETag())
+				.isEqualTo("\"" + profile.etag() + "\"");
+		assertThat(profile.response(headers("gzip")).getHeaders().getETag())
+				.isEqualTo("\"" + profile.gzippedEtag() + "\"");
+		assertThat(profile.gzippedEtag()).isNotEqualTo(profile.etag());
+	}
+
+	@Test
+	void eitherEtagAnswersNotModified() throws JsonProcessingException {
+		ApiProfiles.Profile profile = new ApiProfiles(new ObjectMapper()).get("item");
+
+		HttpHeaders switchedToGzip = headers("gzip");
+		switchedToGzip.setIfNoneMatch("\"" + profile.etag() + "\"");
+		assertThat(profile.notModified(switchedToGzip).getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+		assertThat(profile.notModified(switchedToGzip).getHeaders().getETag())
+				.isEqualTo("\"" + profile.gzippedEtag() + "\"");
+
+		HttpHeaders gzipped = headers("identity");
+		gzipped.setIfNoneMatch("\"" + profile.gzippedEtag() + "\"");
+		assertThat(profile.notModified(gzipped).getStatusCode()).isEqualTo(HttpStatus.NOT_MODIFIED);
+
+		HttpHeaders stale = headers("gzip");
+		stale.setIfNoneMatch("\"profile-stale\"");
+		assertThat(profile.notModified(stale)).isNull();
+	}
+
+	@Test
+	void gzipQualityIsHonoured() {
+		assertThat(ApiProfiles.Profile.acceptsGzip(headers("gzip, deflate"))).isTrue();
+		assertThat(ApiProfiles.Profile.acceptsGzip(headers("deflate, gzip;q=0.5"))).isTrue();
+		assertThat(ApiProfiles.Profile.acceptsGzip(headers("*"))).isTrue();
+		assertThat(ApiProfiles.Profile.acceptsGzip(headers("gzip;q=0, *"))).isFalse();
+		assertThat(ApiProfiles.Profile.acceptsGzip(headers("*, gzip; q=0.0"))).isFalse();
+		assertThat(ApiProfiles.Profile.acceptsGzip(headers("*;q=0"))).isFalse();
+		assertThat(ApiProfiles.Profile.acceptsGzip(headers("deflate"))).isFalse();
+		assertThat(ApiProfiles.Profile.acceptsGzip(new HttpHeaders())).isFalse();
+	}
+
+	private static HttpHeaders headers(String acceptEncoding) {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.ACCEPT_ENCODING, acceptEncoding);
+		return headers;
+	}
+}
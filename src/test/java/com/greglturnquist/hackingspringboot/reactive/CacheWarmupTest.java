@@ -0,0 +1,108 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.mockito.Mockito.*;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.mock.mockito.SpyBean;
+import org.springframework.context.ApplicationContext;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.test.web.reactive.server.WebTestClient;
+import org.springframework.web.reactive.function.client.WebClient;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+@SpringBootTest
+@AutoConfigureWebTestClient
+public class CacheWarmupTest {
+
+	@Autowired
+	WebTestClient webTestClient;
+
+	@Autowired
+	CacheWarmup cacheWarmup;
+
+	@Autowired
+	InventoryService inventoryService;
+
+	@Autowired
+	CartRouter cartRouter;
+
+	@Autowired
+	ReactiveMongoOperations operations;
+
+	@SpyBean
+	WarmupUser warmupUser;
+
+	@Autowired
+	WebClient.Builder webClient;
+
+	@Autowired
+	ApplicationContext context;
+
+	@Test
+	void readinessIsOutOfServiceUntilWarm() {
+		CacheWarmup warmup = warmup(Duration.ofMinutes(1));
+
+		StepVerifier.create(warmup.health())
+			.expectNextMatches(health -> health.getStatus().equals(Status.OUT_OF_SERVICE))
+			.verifyComplete();
+
+		warmup.warmUp();
+
+		StepVerifier.create(untilUp(warmup))
+			.expectNextMatches(health -> !health.getDetails().containsKey("warmup"))
+			.verifyComplete();
+	}
+
+	@Test
+	void warmupThatTimesOutReportsReadyButDegraded() {
+		CacheWarmup warmup = warmup(Duration.ofNanos(1));
+
+		warmup.warmUp();
+
+		StepVerifier.create(untilUp(warmup))
+			.expectNextMatches(health -> health.getDetails().get("warmup").toString().startsWith("degraded"))
+			.verifyComplete();
+	}
+
+	@Test
+	void readinessProbeNeedsNoCredentials() {
+		untilUp(this.cacheWarmup).block();
+
+		this.webTestClient.get().uri("/actuator/health/readiness")
+			.exchange()
+			.expectStatus().isOk()
+			.expectBody()
+			.jsonPath("$.status").isEqualTo("UP");
+	}
+
+	@Test
+	void hotPathsAreSkippedWithoutAWebServer() {
+		StepVerifier.create(warmup(Duration.ofMinutes(1)).warm())
+			.verifyComplete();
+
+		verify(this.warmupUser, never()).create();
+	}
+
+	private CacheWarmup warmup(Duration timeout) {
+		return new CacheWarmup(this.inventoryService, this.cartRouter, this.operations, this.warmupUser,
+				this.webClient, this.context, 1, 1, timeout, false);
+	}
+
+	private static Mono<Health> untilUp(CacheWarmup warmup) {
+		return Flux.interval(Duration.ofMillis(50))
+			.concatMap(tick -> warmup.health())
+			.filter(health -> health.getStatus().equals(Status.UP))
+			.next()
+			.timeout(Duration.ofSeconds(30));
+	}
+}
@@ -0,0 +1,132 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.data.mongodb.core.ReactiveCollectionCallback;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.aggregation.Aggregation;
+import org.springframework.data.mongodb.core.index.ReactiveIndexOperations;
+
+import com.mongodb.MongoException;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+class CartAnalyticsTest {
+
+	@Test
+	void cartTotalsFallIntoTheBucketBelowThem() {
+		long[] boundaries = CartAnalytics.boundaries(new long[] { 2500, 1000, 1000 });
+
+		assertThat(boundaries).containsExactly(0, 1000, 2500);
+		assertThat(CartAnalytics.bucketOf(boundaries, 0)).isZero();
+		assertThat(CartAnalytics.bucketOf(boundaries, 999)).isZero();
+		assertThat(CartAnalytics.bucketOf(boundaries, 1000)).isEqualTo(1000);
+		assertThat(CartAnalytics.bucketOf(boundaries, 1_000_000)).isEqualTo(2500);
+	}
+
+	@Test
+	void cartedItemsAreGroupedOnTheServerAndMaySpillToDisk() {
+		Aggregation aggregation = CartAnalytics.CARTED_ITEMS;
+
+		assertThat(aggregation.getOptions().isAllowDiskUse()).isTrue();
+		assertThat(aggregation.getOptions().getCursorBatchSize()).isEqualTo(1000);
+
+		List<Document> pipeline = aggregation.toPipeline(Aggregation.DEFAULT_CONTEXT);
+		assertThat(pipeline.get(0)).isEqualTo(Document.parse("{ $unwind: '$cartItems' }"));
+		assertThat(pipeline.get(1)).isEqualTo(Document.parse("{ $group: { _id: '$cartItems.item._id', "
+				+ "name: { $first: '$cartItems.item.name' }, inCarts: { $sum: '$cartItems.quantity' } } }"));
+	}
+
+	@Test
+	void failedFlushKeepsItsChangesForTheNextOne() {
+		ReactiveMongoOperations operations = mock(ReactiveMongoOperations.class);
+		ReactiveIndexOperations indexes = mock(ReactiveIndexOperations.class);
+		when(operations.indexOps(ItemDemand.class)).thenReturn(indexes);
+		when(indexes.ensureIndex(any())).thenReturn(Mono.just("inCarts"));
+		when(operations.findById("rebuild", Document.class, CartAnalytics.RUNS)).thenReturn(Mono.empty());
+		CartAnalytics analytics = analytics(operations);
+		addClock(analytics);
+
+		doReturn(Flux.error(new MongoException("down"))).when(operations).execute(anyString(), anyCallback());
+		StepVerifier.create(analytics.flushPending())
+				.expectError()
+				.verify();
+
+		doReturn(Flux.empty()).when(operations).execute(anyString(), anyCallback());
+		StepVerifier.create(analytics.flushPending())
+				.verifyComplete();
+		// Item demand and cart value bucket, once failing and once again.
+		verify(operations, times(4)).execute(anyString(), anyCallback());
+
+		StepVerifier.create(analytics.flushPending())
+				.verifyComplete();
+		verify(operations, times(4)).execute(anyString(), anyCallback());
+	}
+
+	@Test
+	void failedIndexCreationIsTriedAgain() {
+		ReactiveMongoOperations operations = mock(ReactiveMongoOperations.class);
+		ReactiveIndexOperations indexes = mock(ReactiveIndexOperations.class);
+		when(operations.indexOps(ItemDemand.class)).thenReturn(indexes);
+		when(indexes.ensureIndex(any())).thenReturn(Mono.error(new MongoException("starting")), Mono.just("inCarts"));
+		when(operations.findById("rebuild", Document.class, CartAnalytics.RUNS)).thenReturn(Mono.empty());
+		doReturn(Flux.empty()).when(operations).execute(anyString(), anyCallback());
+		CartAnalytics analytics = analytics(operations);
+		addClock(analytics);
+
+		StepVerifier.create(analytics.flushPending())
+				.expectError(MongoException.class)
+				.verify();
+		StepVerifier.create(analytics.flushPending())
+				.verifyComplete();
+		verify(operations, times(2)).execute(anyString(), anyCallback());
+	}
+
+	@Test
+	void changesTheLastRebuildCountedAreDropped() {
+		ReactiveMongoOperations operations = mock(ReactiveMongoOperations.class);
+		ReactiveIndexOperations indexes = mock(ReactiveIndexOperations.class);
+		when(operations.indexOps(ItemDemand.class)).thenReturn(indexes);
+		when(indexes.ensureIndex(any())).thenReturn(Mono.just("inCarts"));
+		CartAnalytics analytics = analytics(operations);
+		addClock(analytics);
+		when(operations.findById("rebuild", Document.class, CartAnalytics.RUNS))
+				.thenReturn(Mono.just(new Document("snapshotAt", new Date(System.currentTimeMillis() + 1000))));
+
+		StepVerifier.create(analytics.flushPending())
+				.verifyComplete();
+		verify(operations, never()).execute(anyString(), anyCallback());
+	}
+
+	private static ReactiveCollectionCallback<Object> anyCallback() {
+		return any();
+	}
+
+	private static CartAnalytics analytics(ReactiveMongoOperations operations) {
+		MongoGuard guard = new MongoGuard(new StandardEnvironment(), new Tracing(null, 0, 10), Duration.ofSeconds(2), 64,
+				50, Duration.ofSeconds(1), Duration.ofSeconds(10), new SimpleMeterRegistry());
+		return new CartAnalytics(null, operations, guard, new long[] { 1000 }, Duration.ofSeconds(5), "0 30 3 * * *",
+				Duration.ofHours(1));
+	}
+
+	private static void addClock(CartAnalytics analytics) {
+		CartItem cartItem = new CartItem(new Item("clock", "Alf alarm clock", "kids clock", 1999));
+		Cart cart = new Cart("cart", new ArrayList<>(Collections.singletonList(cartItem)));
+		cart.recalculateTotals();
+		analytics.cartChanged(0, 0, cart, Collections.singletonMap("clock", 1), Collections.emptyMap());
+	}
+}
@@ -0,0 +1,188 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+import org.springframework.data.mongodb.core.index.Index;
+import org.springframework.data.mongodb.core.query.Update;
+
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+@SpringBootTest(properties = "cart.expire-after=30d")
+public class CartCompactionTest {
+
+	@Autowired
+	CartCompaction compaction;
+
+	@Autowired
+	CartRouter router;
+
+	@Autowired
+	StockLevels stock;
+
+	@Autowired
+	InventoryService inventoryService;
+
+	@Autowired
+	ItemRepository repository;
+
+	@Test
+	void everyShardGetsATtlIndexOnLastTouched() {
+		this.compaction.compactAll()
+			.as(StepVerifier::create)
+			.verifyComplete();
+
+		for (ReactiveMongoOperations shard : this.router.shards()) {
+			shard.indexOps(Cart.class).getIndexInfo()
+				.filter(index -> index.isIndexForFields(Collections.singletonList("lastTouched")))
+				.as(StepVerifier::create)
+				.expectNextMatches(index -> index.getExpireAfter().equals(Optional.of(Duration.ofDays(31))))
+				.verifyComplete();
+		}
+	}
+
+	@Test
+	void ttlIndexFollowsAChangedExpiry() {
+		ReactiveMongoOperations shard = this.router.shards().get(0);
+		shard.indexOps(Cart.class).getIndexInfo()
+			.filter(index -> index.isIndexForFields(Collections.singletonList("lastTouched")))
+			.concatMap(index -> shard.indexOps(Cart.class).dropIndex(index.getName()))
+			.then(shard.indexOps(Cart.class).ensureIndex(new Index().on("lastTouched", Sort.Direction.ASC)
+				.expire(Duration.ofDays(7))))
+			.then(this.compaction.compactAll())
+			.thenMany(shard.indexOps(Cart.class).getIndexInfo())
+			.filter(index -> index.isIndexForFields(Collections.singletonList("lastTouched")))
+			.as(StepVerifier::create)
+			.expectNextMatches(index -> index.getExpireAfter().equals(Optional.of(Duration.ofDays(31))))
+			.verifyComplete();
+	}
+
+	@Test
+	void cartsWithoutATimestampAreStamped() {
+		String id = HomeController.cartName("ivan");
+		ReactiveMongoOperations shard = this.router.route(id);
+		shard.save(new Cart(id, new ArrayList<>(Collections.singletonList(new CartItem(clock()))))).block();
+		Instant before = Instant.now();
+
+		this.compaction.compactAll()
+			.then(shard.findById(id, Cart.class))
+			.as(StepVerifier::create)
+			.expectNextMatches(cart -> !cart.getLastTouched().isBefore(before.minusSeconds(1)))
+			.verifyComplete();
+	}
+
+	@Test
+	void expiredCartsAreRemovedAndTheirStockReleased() {
+		String id = HomeController.cartName("judy");
+		ReactiveMongoOperations shard = this.router.route(id);
+		Item clock = clock();
+		CartItem cartItem = new CartItem(clock);
+		cartItem.setQuantity(2);
+		cartItem.setReserved(2);
+		Cart cart = new Cart(id, new ArrayList<>(Collections.singletonList(cartItem)));
+		cart.setLastTouched(Instant.now().minus(Duration.ofDays(31)));
+
+		this.stock.setStock(clock.getId(), 10)
+			.then(this.stock.reserve(clock.getId(), 2))
+			.then(shard.save(cart))
+			.then(this.compaction.compactAll())
+			.then(shard.findById(id, Cart.class))
+			.as(StepVerifier::create)
+			.verifyComplete();
+
+		this.stock.available(clock.getId())
+			.as(StepVerifier::create)
+			.expectNext(10L)
+			.verifyComplete();
+	}
+
+	@Test
+	void concurrentCompactionsReleaseAnExpiredCartOnce() {
+		String id = HomeController.cartName("nora");
+		ReactiveMongoOperations shard = this.router.route(id);
+		Item lamp = new Item("compaction-lamp", "Lamp", "desk lamp", 1500);
+		CartItem cartItem = new CartItem(lamp);
+		cartItem.setQuantity(3);
+		cartItem.setReserved(3);
+		Cart cart = new Cart(id, new ArrayList<>(Collections.singletonList(cartItem)));
+		cart.setLastTouched(Instant.now().minus(Duration.ofDays(31)));
+
+		// Two nodes running the job at once.
+		this.stock.setStock(lamp.getId(), 10)
+			.then(this.stock.reserve(lamp.getId(), 3))
+			.then(shard.save(cart))
+			.then(Mono.when(this.compaction.compactAll(), this.compaction.compactAll()))
+			.then(this.stock.available(lamp.getId()))
+			.as(StepVerifier::create)
+			.expectNext(10L)
+			.verifyComplete();
+	}
+
+	@Test
+	void expiredCartsOnlyReleaseStockTheyTook() {
+		String id = HomeController.cartName("mona");
+		ReactiveMongoOperations shard = this.router.route(id);
+		Item tray = this.repository.save(new Item("compaction-tray", "Smurf TV tray", "kids TV tray", 2499)).block();
+
+		// Added while the tray wasn't stock-managed yet.
+		this.inventoryService.applyCartOperation(id, new CartOperation(tray.getId(), 2)).block();
+		this.stock.setStock(tray.getId(), 5).block();
+		shard.updateFirst(query(where("id").is(id)),
+				new Update().set("lastTouched", Instant.now().minus(Duration.ofDays(31))), Cart.class).block();
+
+		this.compaction.compactAll()
+			.then(this.stock.available(tray.getId()))
+			.as(StepVerifier::create)
+			.expectNext(5L)
+			.verifyComplete();
+	}
+
+	@Test
+	void emptyCartsAreRemoved() {
+		String id = HomeController.cartName("kyle");
+		ReactiveMongoOperations shard = this.router.route(id);
+
+		shard.save(new Cart(id))
+			.then(this.compaction.compactAll())
+			.then(shard.findById(id, Cart.class))
+			.as(StepVerifier::create)
+			.verifyComplete();
+	}
+
+	@Test
+	void emptyingACartRemovesItUnlessItChangedMeanwhile() {
+		String id = HomeController.cartName("lena");
+		ReactiveMongoOperations shard = this.router.route(id);
+		Cart stale = shard.save(new Cart(id, new ArrayList<>(Collections.singletonList(new CartItem(clock()))))).block();
+		Cart changed = shard.findById(id, Cart.class).block();
+		changed.touch();
+		Cart current = shard.save(changed).block();
+
+		this.inventoryService.removeEmptyCart(stale)
+			.as(StepVerifier::create)
+			.verifyError(OptimisticLockingFailureException.class);
+
+		this.inventoryService.removeEmptyCart(current)
+			.then(shard.findById(id, Cart.class))
+			.as(StepVerifier::create)
+			.verifyComplete();
+	}
+
+	private static Item clock() {
+		return new Item("compaction-clock", "Alf alarm clock", "kids clock", 1999);
+	}
+}
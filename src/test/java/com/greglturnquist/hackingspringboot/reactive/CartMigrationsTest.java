@@ -0,0 +1,63 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.MongoOperations;
+
+@SpringBootTest
+public class CartMigrationsTest {
+
+	static final Item CLOCK = new Item("clock", "Alf alarm clock", "kids clock", 1999);
+	static final Item TRAY = new Item("tray", "Smurf TV tray", "kids TV tray", 2499);
+
+	@Autowired
+	CartMigrations migrations;
+
+	@Autowired
+	MongoOperations mongo;
+
+	@Autowired
+	CartRouter router;
+
+	@Test
+	void legacyCartIsMergedIntoACartAlreadyUnderTheNewId() throws Exception {
+		String id = HomeController.cartName("hank");
+		this.router.route(id).save(new Cart(id, new ArrayList<>(Arrays.asList(line(CLOCK, 1))))).block();
+		this.mongo.insert(new Cart("hank" + HomeController.LEGACY_CART_SUFFIX, Arrays.asList(line(CLOCK, 2), line(TRAY, 1))));
+
+		this.migrations.migrateCarts(this.mongo, this.router).run();
+		// A second run, as after a restart, must not add the legacy lines again.
+		this.migrations.migrateCarts(this.mongo, this.router).run();
+
+		Cart cart = this.router.route(id).findById(id, Cart.class).block();
+		assertThat(cart.getCartItems()).extracting(cartItem -> cartItem.getItem().getId(), CartItem::getQuantity)
+				.containsExactly(tuple("clock", 3), tuple("tray", 1));
+		assertThat(cart.getItemCount()).isEqualTo(4);
+		assertThat(cart.getTotalMinor()).isEqualTo(3 * 1999 + 2499);
+		assertThat(this.mongo.findById("hank" + HomeController.LEGACY_CART_SUFFIX, Cart.class)).isNull();
+	}
+
+	@Test
+	void mergeSumsQuantitiesAndRecomputesTotals() {
+		Cart cart = new Cart("new", new ArrayList<>(Arrays.asList(line(TRAY, 2))));
+		cart.recalculateTotals();
+
+		CartMigrations.merge(cart, new Cart("legacy", Arrays.asList(line(TRAY, 1), line(CLOCK, 1))));
+
+		assertThat(cart.getItemCount()).isEqualTo(4);
+		assertThat(cart.getTotalMinor()).isEqualTo(3 * 2499 + 1999);
+		assertThat(cart.getMigratedFrom()).isEqualTo("legacy");
+	}
+
+	static CartItem line(Item item, int quantity) {
+		CartItem cartItem = new CartItem(item);
+		cartItem.setQuantity(quantity);
+		return cartItem;
+	}
+}
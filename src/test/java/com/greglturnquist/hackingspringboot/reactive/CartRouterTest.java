@@ -0,0 +1,31 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+
+public class CartRouterTest {
+
+	@Test
+	void cartIdsAreCompactAndStable() {
+		String id = HomeController.cartName("alice");
+
+		assertThat(id).hasSize(22).matches("[A-Za-z0-9_-]+");
+		assertThat(HomeController.cartName("alice")).isEqualTo(id);
+		assertThat(HomeController.cartName("bob")).isNotEqualTo(id);
+	}
+
+	@Test
+	void cartsSpreadEvenlyOverShards() {
+		int[] counts = new int[4];
+		IntStream.range(0, 10_000)
+				.mapToObj(i -> HomeController.cartName("user" + i))
+				.forEach(id -> counts[CartRouter.shard(id, counts.length)]++);
+
+		for (int count : counts) {
+			assertThat(count).isBetween(2_300, 2_700);
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import org.junit.jupiter.api.Test;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+
+public class CartWriteCoalescerTest {
+
+	private final List<List<CartOperation>> writes = new CopyOnWriteArrayList<>();
+
+	private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+	private CartWriteCoalescer coalescer(Duration window) {
+		return new CartWriteCoalescer(window, (cartId, operations) -> {
+			this.writes.add(operations);
+			return Mono.just(new Cart(cartId));
+		}, this.meterRegistry);
+	}
+
+	@Test
+	void concurrentOperationsOnOneCartShareAWrite() {
+		CartWriteCoalescer coalescer = coalescer(Duration.ofMillis(200));
+
+		List<Cart> carts = Flux.range(0, 50)
+			.parallel().runOn(Schedulers.parallel())
+			.flatMap(i -> coalescer.submit("ada's Cart", new CartOperation("item-" + (i % 3), 1)))
+			.sequential()
+			.collectList()
+			.block(Duration.ofSeconds(5));
+
+		assertThat(carts).hasSize(50).allMatch(cart -> cart.getId().equals("ada's Cart"));
+		assertThat(this.writes.stream().mapToInt(List::size).sum()).isEqualTo(50);
+		assertThat(this.writes.size()).isLessThan(50);
+		assertThat(this.meterRegistry.counter("cart.coalescer.operations").count()).isEqualTo(50);
+		assertThat(this.meterRegistry.counter("cart.coalescer.writes").count()).isEqualTo(this.writes.size());
+	}
+
+	@Test
+	void differentCartsAreWrittenSeparately() {
+		CartWriteCoalescer coalescer = coalescer(Duration.ofMillis(50));
+
+		Mono.zip(coalescer.submit("ada's Cart", new CartOperation("item", 1)),
+				coalescer.submit("bob's Cart", new CartOperation("item", 1)))
+			.block(Duration.ofSeconds(5));
+
+		assertThat(this.writes).hasSize(2);
+	}
+
+	@Test
+	void zeroWindowWritesImmediately() {
+		CartWriteCoalescer coalescer = coalescer(Duration.ZERO);
+
+		coalescer.submit("ada's Cart", new CartOperation("item", 1)).block(Duration.ofSeconds(5));
+		coalescer.submit("ada's Cart", new CartOperation("item", 1)).block(Duration.ofSeconds(5));
+
+		assertThat(this.writes).hasSize(2);
+	}
+
+	@Test
+	void writerThrowingFailsEveryCoalescedCaller() {
+		CartWriteCoalescer coalescer = new CartWriteCoalescer(Duration.ofMillis(100), (cartId, operations) -> {
+			throw new IllegalStateException("boom");
+		}, this.meterRegistry);
+
+		List<Throwable> errors = new CopyOnWriteArrayList<>();
+		Flux.range(0, 3)
+			.flatMap(i -> coalescer.submit("ada's Cart", new CartOperation("item", 1))
+				.doOnError(errors::add)
+				.onErrorResume(e -> Mono.empty()))
+			.blockLast(Duration.ofSeconds(5));
+
+		assertThat(errors).hasSize(3).allMatch(e -> e instanceof IllegalStateException);
+	}
+}
@@ -0,0 +1,42 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+
+import reactor.test.StepVerifier;
+
+@SpringBootTest
+public class EmbeddedReplicaSetTest {
+
+	@Autowired
+	ReactiveMongoOperations operations;
+
+	@Autowired
+	ItemCatalog catalog;
+
+	@Test
+	void embeddedMongoIsThePrimaryOfAnInitiatedReplicaSet() {
+		this.operations.executeCommand("{ isMaster: 1 }")
+			.as(StepVerifier::create)
+			.expectNextMatches(reply -> {
+				assertThat(reply.getString("setName")).isEqualTo("rs0");
+				assertThat(reply.getBoolean("ismaster")).isTrue();
+				return true;
+			})
+			.verifyComplete();
+	}
+
+	@Test
+	void catalogReadsWithSecondaryPreferredReadPreference() {
+		this.catalog.findAll()
+			.map(Item::getName)
+			.collectList()
+			.as(StepVerifier::create)
+			.expectNextMatches(names -> names.contains("Alf alarm clock"))
+			.verifyComplete();
+	}
+}
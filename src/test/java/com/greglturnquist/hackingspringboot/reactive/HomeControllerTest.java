@@ -80,7 +80,7 @@ public class HomeControllerTest {
 			.as(StepVerifier::create)
 			.expectNextMatches(item -> {
 				assertThat(item.getDescription()).isEqualTo("upgrade");
-				assertThat(item.getPrice()).isEqualTo(999.99);
+				assertThat(item.getPriceMinor()).isEqualTo(99999L);
 
 				return true;
 			})
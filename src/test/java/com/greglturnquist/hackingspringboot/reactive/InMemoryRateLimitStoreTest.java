@@ -0,0 +1,74 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.net.InetSocketAddress;
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.mock.http.server.reactive.MockServerHttpRequest;
+import org.springframework.mock.web.server.MockServerWebExchange;
+import org.springframework.security.authentication.TestingAuthenticationToken;
+import org.springframework.web.server.ServerWebExchange;
+import org.springframework.web.server.WebFilterChain;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+public class InMemoryRateLimitStoreTest {
+
+	@Test
+	void burstIsAdmittedThenClientMustWait() {
+		InMemoryRateLimitStore store = new InMemoryRateLimitStore(1, 5);
+
+		for (int i = 0; i < 5; i++) {
+			assertThat(store.consume("user:ada")).isZero();
+		}
+
+		Duration wait = store.consume("user:ada");
+		assertThat(wait).isPositive().isLessThanOrEqualTo(Duration.ofSeconds(1));
+		assertThat(RateLimitingWebFilter.retryAfterSeconds(wait)).isEqualTo("1");
+	}
+
+	@Test
+	void clientsHaveSeparateBudgets() {
+		InMemoryRateLimitStore store = new InMemoryRateLimitStore(1, 1);
+
+		assertThat(store.consume("user:ada")).isZero();
+		assertThat(store.consume("user:ada")).isPositive();
+		assertThat(store.consume("user:bob")).isZero();
+	}
+
+	@Test
+	void addressBudgetIsChargedBeforeAuthenticationWhateverTheCredentials() {
+		RateLimitingWebFilter filter = new RateLimitingWebFilter(new InMemoryRateLimitStore(1, 2), true,
+				new SimpleMeterRegistry());
+		WebFilterChain chain = exchange -> Mono.empty();
+
+		assertThat(filter.getOrder()).isLessThan(-100);
+		for (String user : new String[] { "ada", "bob" }) {
+			MockServerWebExchange exchange = MockServerWebExchange.from(requestFrom("192.0.2.1"));
+			filter.filter(as(exchange, user), chain).block();
+			assertThat(exchange.getResponse().getStatusCode()).isNull();
+		}
+
+		MockServerWebExchange rejected = MockServerWebExchange.from(requestFrom("192.0.2.1"));
+		filter.filter(as(rejected, "carol"), chain).block();
+		assertThat(rejected.getResponse().getStatusCode()).isEqualTo(HttpStatus.TOO_MANY_REQUESTS);
+		assertThat(rejected.getResponse().getHeaders().getFirst(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+
+		MockServerWebExchange otherAddress = MockServerWebExchange.from(requestFrom("192.0.2.2"));
+		filter.filter(as(otherAddress, "carol"), chain).block();
+		assertThat(otherAddress.getResponse().getStatusCode()).isNull();
+	}
+
+	private static MockServerHttpRequest requestFrom(String address) {
+		return MockServerHttpRequest.get("/login").remoteAddress(new InetSocketAddress(address, 40000)).build();
+	}
+
+	private static ServerWebExchange as(ServerWebExchange exchange, String user) {
+		return exchange.mutate().principal(Mono.just(new TestingAuthenticationToken(user, "wrong"))).build();
+	}
+}
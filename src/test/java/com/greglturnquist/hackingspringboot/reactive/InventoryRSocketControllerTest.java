@@ -0,0 +1,75 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.rsocket.context.LocalRSocketServerPort;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.messaging.rsocket.RSocketRequester;
+import org.springframework.security.rsocket.metadata.SimpleAuthenticationEncoder;
+import org.springframework.security.rsocket.metadata.UsernamePasswordMetadata;
+import org.springframework.util.MimeType;
+import org.springframework.util.MimeTypeUtils;
+
+import io.rsocket.metadata.WellKnownMimeType;
+import reactor.test.StepVerifier;
+
+@SpringBootTest
+public class InventoryRSocketControllerTest {
+
+	private static final MimeType SIMPLE_AUTH = MimeTypeUtils
+			.parseMimeType(WellKnownMimeType.MESSAGE_RSOCKET_AUTHENTICATION.getString());
+
+	@LocalRSocketServerPort
+	int port;
+
+	@Autowired
+	RSocketRequester.Builder builder;
+
+	@Autowired
+	ItemRepository repository;
+
+	private RSocketRequester requester(String username, String password) {
+		return this.builder
+				.setupMetadata(new UsernamePasswordMetadata(username, password), SIMPLE_AUTH)
+				.rsocketStrategies(strategies -> strategies.encoder(new SimpleAuthenticationEncoder()))
+				.connectTcp("localhost", this.port)
+				.block(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void streamingInventoryRequiresCredentials() {
+		this.builder.connectTcp("localhost", this.port)
+				.flatMapMany(requester -> requester.route("items.all").retrieveFlux(Item.class))
+				.as(StepVerifier::create)
+				.expectError()
+				.verify(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void streamingInventoryWithCredentials() {
+		requester("greg", "password")
+				.route("items.all").retrieveFlux(Item.class)
+				.as(StepVerifier::create)
+				.thenConsumeWhile(item -> true)
+				.verifyComplete();
+	}
+
+	@Test
+	void addingToCartGoesToTheCallersCart() {
+		String id = this.repository.findByName("Smurf TV tray").map(Item::getId).block();
+
+		requester("greg", "password")
+				.route("cart.add").data(id).retrieveMono(Cart.class)
+				.as(StepVerifier::create)
+				.expectNextMatches(cart -> {
+					assertThat(cart.getId()).isEqualTo(HomeController.cartName("greg"));
+					assertThat(cart.getCartItems()).anyMatch(cartItem -> cartItem.getItem().getId().equals(id));
+					return true;
+				})
+				.verifyComplete();
+	}
+}
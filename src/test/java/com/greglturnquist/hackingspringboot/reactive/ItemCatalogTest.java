@@ -0,0 +1,33 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.mongodb.ReadPreference;
+import com.mongodb.TaggableReadPreference;
+
+public class ItemCatalogTest {
+
+	@Test
+	void secondaryReadsCarryMaxStaleness() {
+		ReadPreference readPreference = ItemCatalog.readPreference("secondaryPreferred", Duration.ofMinutes(2));
+
+		assertThat(readPreference.getName()).isEqualTo("secondaryPreferred");
+		assertThat(((TaggableReadPreference) readPreference).getMaxStaleness(TimeUnit.SECONDS)).isEqualTo(120L);
+	}
+
+	@Test
+	void primaryIgnoresMaxStaleness() {
+		assertThat(ItemCatalog.readPreference("primary", Duration.ZERO)).isEqualTo(ReadPreference.primary());
+	}
+
+	@Test
+	void maxStalenessBelowDriverMinimumIsRejected() {
+		assertThatIllegalArgumentException()
+				.isThrownBy(() -> ItemCatalog.readPreference("secondary", Duration.ofSeconds(10)));
+	}
+}
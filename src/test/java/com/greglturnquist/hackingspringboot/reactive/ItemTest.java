@@ -0,0 +1,74 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.math.BigDecimal;
+import java.util.Collections;
+
+import org.bson.Document;
+import org.junit.jupiter.api.Test;
+import org.springframework.data.mongodb.core.convert.MappingMongoConverter;
+import org.springframework.data.mongodb.core.convert.MongoCustomConversions;
+import org.springframework.data.mongodb.core.convert.NoOpDbRefResolver;
+import org.springframework.data.mongodb.core.mapping.MongoMappingContext;
+
+class ItemTest {
+
+	private final MappingMongoConverter converter = converter();
+
+	private static MappingMongoConverter converter() {
+		MongoCustomConversions conversions = new MongoCustomConversions(Collections.emptyList());
+		MongoMappingContext context = new MongoMappingContext();
+		context.setSimpleTypeHolder(conversions.getSimpleTypeHolder());
+		MappingMongoConverter converter = new MappingMongoConverter(NoOpDbRefResolver.INSTANCE, context);
+		converter.setCustomConversions(conversions);
+		converter.afterPropertiesSet();
+		return converter;
+	}
+
+	@Test
+	void legacyDoublePricesAreReadAsMinorUnits() {
+		Item item = this.converter.read(Item.class,
+				new Document("_id", "1").append("name", "TV tray").append("description", "kids").append("price", 24.99));
+
+		assertThat(item.getPriceMinor()).isEqualTo(2499L);
+		assertThat(item.getCurrency()).isEqualTo(Item.CURRENCY);
+	}
+
+	@Test
+	void itemsAreWrittenWithoutTheLegacyPrice() {
+		Document document = new Document();
+		this.converter.write(new Item("1", "TV tray", "kids", 2499), document);
+
+		assertThat(document).containsEntry("priceMinor", 2499L).doesNotContainKeys("price", "currency");
+		assertThat(this.converter.read(Item.class, document)).isEqualTo(new Item("1", "TV tray", "kids", 2499));
+	}
+
+	@Test
+	void storedCurrenciesDoNotChangeThePrice() {
+		Item item = this.converter.read(Item.class,
+				new Document("_id", "1").append("name", "TV tray").append("priceMinor", 2499L).append("currency", "JPY"));
+
+		assertThat(item.getCurrency()).isEqualTo(Item.CURRENCY);
+		assertThat(item.getPrice()).isEqualByComparingTo("24.99");
+	}
+
+	@Test
+	void decimalPricesRoundHalfEven() {
+		assertThat(Item.toMinorUnits(new BigDecimal("0.125"))).isEqualTo(12L);
+		assertThat(Item.toMinorUnits(new BigDecimal("0.135"))).isEqualTo(14L);
+		assertThat(Item.toMinorUnits(BigDecimal.valueOf(0.1 + 0.2))).isEqualTo(30L);
+	}
+
+	@Test
+	void cartTotalsAreDecimalAmountsThatAreNotStored() {
+		Cart cart = new Cart("cart");
+		cart.setTotalMinor(12345);
+
+		assertThat(cart.getTotal()).isEqualTo(new BigDecimal("123.45"));
+
+		Document document = new Document();
+		this.converter.write(cart, document);
+		assertThat(document).containsEntry("totalMinor", 12345L).doesNotContainKey("total");
+	}
+}
@@ -0,0 +1,76 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.boot.convert.ApplicationConversionService;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.mock.env.MockEnvironment;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.test.StepVerifier;
+
+public class MongoGuardTest {
+
+	private final MongoGuard guard = new MongoGuard(new StandardEnvironment(), new Tracing(null, 0, 10), Duration.ofMillis(50), 1, 50,
+			Duration.ofSeconds(1), Duration.ofSeconds(10), new SimpleMeterRegistry());
+
+	@Test
+	void slowCallsTimeOut() {
+		StepVerifier.create(this.guard.mono("item", "findById", Mono.never()))
+				.expectError(MongoUnavailableException.class)
+				.verify(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void callsBeyondTheBulkheadAreRefused() {
+		this.guard.mono("cart", "findById", Mono.never()).subscribe(value -> {}, e -> {});
+
+		StepVerifier.create(this.guard.mono("cart", "save", Mono.just("saved")))
+				.expectError(MongoUnavailableException.class)
+				.verify(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void applicationErrorsPassThrough() {
+		StepVerifier.create(this.guard.mono("cart", "save", Mono.error(new OptimisticLockingFailureException("stale"))))
+				.expectError(OptimisticLockingFailureException.class)
+				.verify(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void longRunningResultsHitTheDeadline() {
+		MockEnvironment environment = new MockEnvironment().withProperty("mongo.deadline.default", "200ms");
+		environment.setConversionService(new ApplicationConversionService());
+		MongoGuard guard = new MongoGuard(environment, new Tracing(null, 0, 10), Duration.ofMillis(50), 1, 50,
+				Duration.ofSeconds(1), Duration.ofSeconds(10), new SimpleMeterRegistry());
+
+		// Each element arrives well within the timeout, the whole result doesn't.
+		StepVerifier.create(guard.flux("item", "findAll", Flux.interval(Duration.ofMillis(20))))
+				.thenConsumeWhile(tick -> true)
+				.expectError(MongoUnavailableException.class)
+				.verify(Duration.ofSeconds(5));
+	}
+
+	@Test
+	void onlySuccessfulSetupIsCached() {
+		AtomicInteger attempts = new AtomicInteger();
+		Mono<Integer> setup = MongoGuard.cacheSuccess(Mono.fromCallable(() -> {
+			if (attempts.incrementAndGet() == 1) {
+				throw new IllegalStateException("Mongo is still starting");
+			}
+			return attempts.get();
+		}));
+
+		StepVerifier.create(setup).expectError(IllegalStateException.class).verify();
+		StepVerifier.create(setup).expectNext(2).verifyComplete();
+		StepVerifier.create(setup).expectNext(2).verifyComplete();
+		assertThat(attempts).hasValue(2);
+	}
+}
@@ -0,0 +1,51 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.mongodb.core.ReactiveMongoOperations;
+
+@SpringBootTest
+public class OutboxWorkerTest {
+
+	@Autowired
+	OutboxWorker worker;
+
+	@Autowired
+	CartRouter router;
+
+	@Test
+	void eventsClaimedByAnotherNodeAreLeftAlone() {
+		ReactiveMongoOperations shard = this.router.shards().get(0);
+		Order order = Order.from(cart("nina"));
+		OutboxEvent unclaimed = OutboxEvent.orderPlaced(order);
+		OutboxEvent claimed = new OutboxEvent("claimed-elsewhere", OutboxEvent.ORDER_PLACED, order.getId(), order,
+				Instant.now(), null, "other-node", Instant.now().plus(Duration.ofMinutes(1)));
+		OutboxEvent lapsed = new OutboxEvent("claim-lapsed", OutboxEvent.ORDER_PLACED, order.getId(), order,
+				Instant.now(), null, "stopped-node", Instant.now().minus(Duration.ofMinutes(1)));
+		shard.insertAll(Arrays.asList(unclaimed, claimed, lapsed)).blockLast();
+
+		this.worker.drainAll().block();
+
+		assertThat(shard.findById(unclaimed.getId(), OutboxEvent.class).block().getPublishedAt()).isNotNull();
+		assertThat(shard.findById("claim-lapsed", OutboxEvent.class).block().getPublishedAt()).isNotNull();
+		OutboxEvent untouched = shard.findById("claimed-elsewhere", OutboxEvent.class).block();
+		assertThat(untouched.getPublishedAt()).isNull();
+		assertThat(untouched.getClaimedBy()).isEqualTo("other-node");
+	}
+
+	private static Cart cart(String name) {
+		CartItem cartItem = new CartItem(new Item("outbox-clock", "Alf alarm clock", "kids clock", 1999));
+		Cart cart = new Cart(HomeController.cartName(name), new ArrayList<>(Collections.singletonList(cartItem)));
+		cart.recalculateTotals();
+		return cart;
+	}
+}
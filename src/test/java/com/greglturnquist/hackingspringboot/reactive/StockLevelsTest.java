@@ -0,0 +1,89 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Schedulers;
+import reactor.test.StepVerifier;
+
+@SpringBootTest
+public class StockLevelsTest {
+
+	@Autowired
+	StockLevels stock;
+
+	@Test
+	void concurrentReservationsNeverOversell() {
+		this.stock.setStock("hot-item", 100).block();
+
+		long reserved = Flux.range(0, 1_000)
+				.parallel(16)
+				.runOn(Schedulers.parallel())
+				// 16 rails of 2 keep the calls in flight within the "stock" bulkhead of 64.
+				.flatMap(i -> this.stock.reserve("hot-item", 1 + i % 3)
+						.thenReturn(1 + i % 3)
+						.onErrorResume(OutOfStockException.class, e -> Mono.just(0)), false, 2)
+				.sequential()
+				.reduce(0, Integer::sum)
+				.block(Duration.ofSeconds(60));
+
+		assertThat(reserved).isEqualTo(100);
+		assertThat(this.stock.available("hot-item").block()).isZero();
+	}
+
+	@Test
+	void largeReservationsAreTakenFromSeveralSlots() {
+		// One unit in each of the 8 slots, so no single slot holds the quantity.
+		this.stock.setStock("spread-item", 8).block();
+
+		StepVerifier.create(this.stock.reserve("spread-item", 7))
+				.expectNext(true)
+				.verifyComplete();
+
+		assertThat(this.stock.available("spread-item").block()).isEqualTo(1);
+	}
+
+	@Test
+	void failedReservationHandsBackWhatItTook() {
+		this.stock.setStock("scarce-item", 2).block();
+		this.stock.setStock("other-item", 5).block();
+
+		StepVerifier.create(this.stock.reserve(Collections.singletonMap("scarce-item", 3)))
+				.expectError(OutOfStockException.class)
+				.verify();
+
+		assertThat(this.stock.available("scarce-item").block()).isEqualTo(2);
+
+		this.stock.release("other-item", 1).block();
+		assertThat(this.stock.available("other-item").block()).isEqualTo(6);
+	}
+
+	@Test
+	void untrackedItemsAreUnlimited() {
+		StepVerifier.create(this.stock.reserve("untracked-item", 1_000))
+				.expectNext(false)
+				.verifyComplete();
+	}
+
+	@Test
+	void onlyTrackedReservationsAreReported() {
+		this.stock.setStock("tracked-item", 5).block();
+		Map<String, Integer> quantities = new LinkedHashMap<>();
+		quantities.put("tracked-item", 2);
+		quantities.put("other-untracked-item", 3);
+
+		StepVerifier.create(this.stock.reserve(quantities))
+				.expectNext(Collections.singletonMap("tracked-item", 2))
+				.verifyComplete();
+	}
+}
@@ -0,0 +1,95 @@
+package com.greglturnquist.hackingspringboot.reactive;
+
+import static org.assertj.core.api.Assertions.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.stream.IntStream;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import reactor.core.publisher.Mono;
+
+public class TracingTest {
+
+	private static final String TRACE_ID = "4bf92f3577b34da6a3ce929d0e0e4736";
+
+	private final ObjectMapper mapper = new ObjectMapper();
+
+	@Test
+	void spansNestThroughTheReactorContext(@TempDir Path directory) throws Exception {
+		Path file = directory.resolve("spans.jsonl");
+		SpanExporter exporter = new SpanExporter(this.mapper, file.toString(), 0, 16, new SimpleMeterRegistry());
+		Tracing tracing = new Tracing(exporter, 0, 10);
+
+		Span root = tracing.startRequest("GET /", "00-" + TRACE_ID + "-00f067aa0ba902b7-01");
+		tracing.mono("outer", tracing.mono("inner", Mono.just("done")))
+				.subscriberContext(context -> context.put(Span.class, root))
+				.block();
+		tracing.end(root, null);
+		exporter.destroy();
+
+		Map<String, JsonNode> spans = new HashMap<>();
+		for (String line : Files.readAllLines(file)) {
+			JsonNode span = this.mapper.readTree(line);
+			spans.put(span.get("name").asText(), span);
+		}
+		assertThat(spans).containsOnlyKeys("GET /", "outer", "inner");
+		JsonNode inner = spans.get("inner");
+		JsonNode outer = spans.get("outer");
+		JsonNode request = spans.get("GET /");
+
+		assertThat(inner.get("parentSpanId").asText()).isEqualTo(outer.get("spanId").asText());
+		assertThat(outer.get("parentSpanId").asText()).isEqualTo(request.get("spanId").asText());
+		assertThat(request.get("parentSpanId").asText()).isEqualTo("00f067aa0ba902b7");
+		assertThat(request.get("traceId").asText()).isEqualTo(TRACE_ID);
+	}
+
+	@Test
+	void unsampledRequestsAreNotTraced() {
+		Tracing tracing = new Tracing(null, 0, 10);
+
+		assertThat(tracing.startRequest("GET /", null)).isNull();
+		assertThat(tracing.startRequest("GET /", "00-" + TRACE_ID + "-00f067aa0ba902b7-00")).isNull();
+		assertThat(tracing.mono("untraced", Mono.just("done")).block()).isEqualTo("done");
+	}
+
+	@Test
+	void callersCanOnlyForceAFewTracesASecond() {
+		Tracing tracing = new Tracing(null, 0, 3);
+		String traceparent = "00-" + TRACE_ID + "-00f067aa0ba902b7-01";
+
+		long forced = IntStream.range(0, 100)
+				.mapToObj(i -> tracing.startRequest("GET /", traceparent))
+				.filter(Objects::nonNull)
+				.count();
+
+		// The loop may straddle a second boundary.
+		assertThat(forced).isBetween(3L, 6L);
+	}
+
+	@Test
+	void spanFileRollsOverAtItsMaximumSize(@TempDir Path directory) throws Exception {
+		Path file = directory.resolve("spans.jsonl");
+		SpanExporter exporter = new SpanExporter(this.mapper, file.toString(), 1, 16, new SimpleMeterRegistry());
+		Tracing tracing = new Tracing(exporter, 1, 10);
+
+		for (int i = 0; i < 3; i++) {
+			tracing.end(tracing.startRequest("GET /" + i, null), null);
+			Thread.sleep(300);
+		}
+		exporter.destroy();
+
+		assertThat(Files.readAllLines(file)).hasSize(1).allMatch(line -> line.contains("GET /2"));
+		assertThat(Files.readAllLines(directory.resolve("spans.jsonl.1"))).hasSize(1)
+				.allMatch(line -> line.contains("GET /1"));
+	}
+}